@@ -0,0 +1,70 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many requests of a kind run at once. A request that finds every permit taken
+ * waits for one, but only if few enough are waiting already and only for so long; otherwise
+ * it is turned away at once, so that bursts are shed instead of piling up in memory. Active,
+ * waiting and rejected requests are published in Metrics under the bulkhead's name.
+ */
+public class Bulkhead {
+    private final Semaphore permits;
+    private final int maxActive;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final int maxWaiting;
+    private final long maxWaitMillis;
+    private final Metrics.Counter rejected;
+
+    /**
+     * @param name Name in Metrics, e.g. "raster_bulkhead".
+     * @param maxActive How many requests may run at once.
+     * @param maxWaiting How many requests may wait for a permit at once.
+     * @param maxWaitMillis How long a request may wait for a permit.
+     */
+    Bulkhead(String name, int maxActive, int maxWaiting, long maxWaitMillis) {
+        this.permits = new Semaphore(maxActive);
+        this.maxActive = maxActive;
+        this.maxWaiting = maxWaiting;
+        this.maxWaitMillis = maxWaitMillis;
+        rejected = Metrics.counter(name + ".rejected");
+        Metrics.gauge(name + ".active", this::active);
+        Metrics.gauge(name + ".waiting", waiting::get);
+    }
+
+    /**
+     * Takes a permit, waiting for one if allowed. Returns false if the request should be
+     * turned away; otherwise the caller must call exit when done.
+     */
+    boolean tryEnter() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        try {
+            if (permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /** Gives back the permit taken by tryEnter. */
+    void exit() {
+        permits.release();
+    }
+
+    /** Returns how many requests hold a permit now. */
+    int active() {
+        return maxActive - permits.availablePermits();
+    }
+}
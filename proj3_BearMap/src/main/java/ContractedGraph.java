@@ -0,0 +1,269 @@
+import java.util.Arrays;
+
+/**
+ * The search graph used by Router. Most OSM nodes are shape points in the middle of a road
+ * with exactly two neighbours; this class collapses every run of such nodes into a single
+ * weighted edge (a "chain") between two core vertices, where a core vertex is any vertex whose
+ * degree is not two. The interior nodes of each chain are kept, in order, in one packed
+ * geometry array so that a path over chains can be expanded back to the full node sequence.
+ *
+ * All indices here are the dense vertex indices of GraphDB unless they are named core.
+ */
+public class ContractedGraph {
+    /** Dense vertex of each core vertex, and core index of each dense vertex (-1 if none). */
+    final int[] core, coreOf;
+    /** Outgoing arcs of core vertex c are arcStart[c] .. arcStart[c + 1]. */
+    final int[] arcStart, arcHead;
+    final double[] arcWeight;
+    /** Chain walked by each arc: c when walked from chainFrom to chainTo, ~c when reversed. */
+    final int[] arcChain;
+    /** End points (dense, always core) and length in miles of each chain. */
+    final int[] chainFrom, chainTo;
+    final double[] chainLength;
+    /** The interior nodes of chain c are geometry[geometryStart[c] .. geometryStart[c + 1]). */
+    final int[] geometryStart, geometry;
+    /** For an interior vertex: its chain, its slot in geometry, and its distance along the
+     * chain from chainFrom. */
+    final int[] chainOf, geometryIndex;
+    final double[] offset;
+
+    /* Growable buffers, only used while building. */
+    private int chains;
+    private int[] from = new int[16], to = new int[16], geomStart = new int[17];
+    private double[] length = new double[16];
+    private int[] geom = new int[16];
+    private int geomSize;
+
+    /**
+     * Contracts the dense graph of g.
+     * @param g A graph whose dense arrays have been built.
+     */
+    ContractedGraph(GraphDB g) {
+        int n = g.nodeId.length;
+        coreOf = new int[n];
+        chainOf = new int[n];
+        geometryIndex = new int[n];
+        offset = new double[n];
+        Arrays.fill(chainOf, -1);
+        int[] coreList = new int[n];
+        int cores = 0;
+        for (int v = 0; v < n; v++) {
+            if (degree(g, v) != 2) {
+                coreOf[v] = cores;
+                coreList[cores++] = v;
+            } else {
+                coreOf[v] = -1;
+            }
+        }
+        for (int c = 0; c < cores; c++) {
+            walkChains(g, coreList[c]);
+        }
+        /* Whatever is left over lies on a cycle of degree-2 vertices; promote one per cycle. */
+        for (int v = 0; v < n; v++) {
+            if (coreOf[v] == -1 && chainOf[v] == -1) {
+                coreOf[v] = cores;
+                coreList[cores++] = v;
+                walkChains(g, v);
+            }
+        }
+        core = Arrays.copyOf(coreList, cores);
+        chainFrom = Arrays.copyOf(from, chains);
+        chainTo = Arrays.copyOf(to, chains);
+        chainLength = Arrays.copyOf(length, chains);
+        geometryStart = Arrays.copyOf(geomStart, chains + 1);
+        geometry = Arrays.copyOf(geom, geomSize);
+        from = null;
+        to = null;
+        length = null;
+        geomStart = null;
+        geom = null;
+
+        arcStart = new int[cores + 1];
+        for (int c = 0; c < chains; c++) {
+            arcStart[coreOf[chainFrom[c]] + 1] += 1;
+            arcStart[coreOf[chainTo[c]] + 1] += 1;
+        }
+        for (int c = 0; c < cores; c++) {
+            arcStart[c + 1] += arcStart[c];
+        }
+        arcHead = new int[2 * chains];
+        arcWeight = new double[2 * chains];
+        arcChain = new int[2 * chains];
+        int[] fill = Arrays.copyOf(arcStart, cores);
+        for (int c = 0; c < chains; c++) {
+            int a = fill[coreOf[chainFrom[c]]]++;
+            arcHead[a] = coreOf[chainTo[c]];
+            arcWeight[a] = chainLength[c];
+            arcChain[a] = c;
+            int b = fill[coreOf[chainTo[c]]]++;
+            arcHead[b] = coreOf[chainFrom[c]];
+            arcWeight[b] = chainLength[c];
+            arcChain[b] = ~c;
+        }
+    }
+
+    private static int degree(GraphDB g, int v) {
+        return g.adjStart[v + 1] - g.adjStart[v];
+    }
+
+    /**
+     * Follows every edge out of core vertex u until the next core vertex and records the
+     * chain, unless it will be (or already was) recorded when walking from the other end.
+     */
+    private void walkChains(GraphDB g, int u) {
+        for (int e = g.adjStart[u]; e < g.adjStart[u + 1]; e++) {
+            int mark = geomSize;
+            int prev = u;
+            int cur = g.adjList[e];
+            double miles = distance(g, prev, cur);
+            while (coreOf[cur] == -1) {
+                appendGeometry(cur);
+                int a = g.adjList[g.adjStart[cur]];
+                int next = a != prev ? a : g.adjList[g.adjStart[cur] + 1];
+                prev = cur;
+                cur = next;
+                miles += distance(g, prev, cur);
+            }
+            boolean keep = u < cur
+                    || (u == cur && geomSize > mark && geom[mark] < geom[geomSize - 1]);
+            if (!keep) {
+                geomSize = mark;
+                continue;
+            }
+            prev = u;
+            double along = 0;
+            for (int i = mark; i < geomSize; i++) {
+                along += distance(g, prev, geom[i]);
+                chainOf[geom[i]] = chains;
+                geometryIndex[geom[i]] = i;
+                offset[geom[i]] = along;
+                prev = geom[i];
+            }
+            addChain(u, cur, miles);
+        }
+    }
+
+    private void appendGeometry(int v) {
+        if (geomSize == geom.length) {
+            geom = Arrays.copyOf(geom, geomSize * 2);
+        }
+        geom[geomSize++] = v;
+    }
+
+    private void addChain(int u, int v, double miles) {
+        if (chains == from.length) {
+            from = Arrays.copyOf(from, chains * 2);
+            to = Arrays.copyOf(to, chains * 2);
+            length = Arrays.copyOf(length, chains * 2);
+            geomStart = Arrays.copyOf(geomStart, chains * 2 + 1);
+        }
+        from[chains] = u;
+        to[chains] = v;
+        length[chains] = miles;
+        chains += 1;
+        geomStart[chains] = geomSize;
+    }
+
+    private static double distance(GraphDB g, int v, int w) {
+        return GraphDB.distance(g.nodeLon[v], g.nodeLat[v], g.nodeLon[w], g.nodeLat[w]);
+    }
+
+    /** Returns the number of core vertices, i.e. the size of the search graph. */
+    int size() {
+        return core.length;
+    }
+
+    /**
+     * Appends the dense vertices passed through by arc a, excluding its tail and including
+     * its head, to path.
+     */
+    void expandArc(int a, IntList path) {
+        int c = arcChain[a];
+        if (c >= 0) {
+            for (int i = geometryStart[c]; i < geometryStart[c + 1]; i++) {
+                path.add(geometry[i]);
+            }
+            path.add(chainTo[c]);
+        } else {
+            c = ~c;
+            for (int i = geometryStart[c + 1] - 1; i >= geometryStart[c]; i--) {
+                path.add(geometry[i]);
+            }
+            path.add(chainFrom[c]);
+        }
+    }
+
+    /**
+     * Appends the dense vertices on the chain of interior vertex v strictly after v,
+     * walking towards chainTo (forward) or towards chainFrom, and then the end point itself.
+     */
+    void expandFrom(int v, boolean forward, IntList path) {
+        int c = chainOf[v];
+        int i = geometryIndex[v];
+        if (forward) {
+            for (i = i + 1; i < geometryStart[c + 1]; i++) {
+                path.add(geometry[i]);
+            }
+            path.add(chainTo[c]);
+        } else {
+            for (i = i - 1; i >= geometryStart[c]; i--) {
+                path.add(geometry[i]);
+            }
+            path.add(chainFrom[c]);
+        }
+    }
+
+    /**
+     * Appends the dense vertices on the chain of interior vertex t from just after one of the
+     * chain's end points up to and including t: from chainFrom when forward, else from chainTo.
+     */
+    void expandTo(int t, boolean forward, IntList path) {
+        int c = chainOf[t];
+        if (forward) {
+            for (int i = geometryStart[c]; i <= geometryIndex[t]; i++) {
+                path.add(geometry[i]);
+            }
+        } else {
+            for (int i = geometryStart[c + 1] - 1; i >= geometryIndex[t]; i--) {
+                path.add(geometry[i]);
+            }
+        }
+    }
+
+    /**
+     * Appends the dense vertices strictly after s up to and including t, where s and t are
+     * distinct interior vertices of the same chain.
+     */
+    void expandBetween(int s, int t, IntList path) {
+        int i = geometryIndex[s];
+        int j = geometryIndex[t];
+        int step = i < j ? 1 : -1;
+        do {
+            i += step;
+            path.add(geometry[i]);
+        } while (i != j);
+    }
+
+    /**
+     * A minimal growable list of ints.
+     */
+    static class IntList {
+        int[] items = new int[16];
+        int size;
+
+        void add(int x) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = x;
+        }
+
+        int get(int i) {
+            return items[i];
+        }
+
+        int last() {
+            return items[size - 1];
+        }
+    }
+}
@@ -32,10 +32,8 @@ public class GraphBuildingHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
-            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
-                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
-                    "secondary_link", "tertiary_link"));
+    private static final Set<String> ALLOWED_HIGHWAY_TYPES =
+            new HashSet<>(Arrays.asList(GraphDB.WAY_CLASSES));
     private String activeState = "";
     private final GraphDB g;
 
@@ -127,6 +125,7 @@ public class GraphBuildingHandler extends DefaultHandler {
                 /* TODO Figure out whether this way and its connections are valid. */
                 /* Hint: Setting a "flag" is good enough! */
                 isWayValid = ALLOWED_HIGHWAY_TYPES.contains(v); //flag
+                way.extraInfo.put(k, v);
                 //System.out.println("Highway type: " + v + "==is valid" + isWayValid);
 
             } else if (k.equals("name")) {
@@ -171,9 +170,10 @@ public class GraphBuildingHandler extends DefaultHandler {
             //System.out.println("Finishing a way...");
             //ArrayList<Long> ref = way.ref;
             if (isWayValid) {
+                int wayClass = GraphDB.wayClass(way.extraInfo.get("highway"));
                 for (int i = 1; i < way.ref.size(); i++) {
                     //connect the nearby nodes together
-                    g.addEdge(way.ref.get(i - 1), way.ref.get(i));
+                    g.addEdge(way.ref.get(i - 1), way.ref.get(i), wayClass);
                 }
                 isWayValid = false;
             }
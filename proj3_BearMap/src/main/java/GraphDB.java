@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -46,10 +47,36 @@ public class GraphDB {
             e.printStackTrace();
         }
         clean();
+        buildIndex();
+        labelComponents();
+        contracted = new ContractedGraph(this);
+        segments = new SegmentRTree(this);
     }
 
     Map<Long, Vertice> vertice = new LinkedHashMap<>();
     Map<Long, Way> way = new LinkedHashMap<>();
+
+    /* Dense, array-based copy of the cleaned graph. Vertex i (0 <= i < nodeId.length) is the
+     * Vertice whose index field is i; its neighbours are adjList[adjStart[i] .. adjStart[i + 1]).
+     */
+    long[] nodeId;
+    double[] nodeLon, nodeLat;
+    int[] adjStart, adjList;
+    /** The way class (an index into WAY_CLASSES) of each edge in adjList. */
+    byte[] adjClass;
+    /** Connected component id of each dense vertex, and the size of each component. */
+    int[] component, componentSize;
+    /** Id of the component with the most vertices. */
+    int largestComponent;
+    /** The graph Router searches, with chains of degree-2 vertices collapsed. */
+    ContractedGraph contracted;
+    /** Spatial index over every edge, for snapping points onto roads. */
+    SegmentRTree segments;
+    /** The highway types of the ways that make up the graph, most important first. */
+    static final String[] WAY_CLASSES = {"motorway", "trunk", "primary", "secondary",
+        "tertiary", "unclassified", "residential", "living_street", "motorway_link",
+        "trunk_link", "primary_link", "secondary_link", "tertiary_link"};
+
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
      * @param s Input string.
@@ -78,6 +105,171 @@ public class GraphDB {
         //System.out.println("==After delete: " + vertices());
     }
 
+    /**
+     * Numbers the remaining vertices 0..n-1 in Hilbert curve order and packs their coordinates
+     * and de-duplicated adjacency lists into primitive arrays. Vertices that are close on the
+     * map thus get close indices, so a search or a route drawing that stays in one area
+     * touches few cache lines of every per-vertex and per-edge array built from this order.
+     */
+    private void buildIndex() {
+        int n = vertice.size();
+        Vertice[] order = vertice.values().toArray(new Vertice[n]);
+        double minLon = Double.POSITIVE_INFINITY, minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (Vertice v : order) {
+            minLon = Math.min(minLon, v.lon);
+            maxLon = Math.max(maxLon, v.lon);
+            minLat = Math.min(minLat, v.lat);
+            maxLat = Math.max(maxLat, v.lat);
+        }
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int x = grid(order[i].lon, minLon, maxLon);
+            int y = grid(order[i].lat, minLat, maxLat);
+            keys[i] = (hilbert(x, y) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        nodeId = new long[n];
+        nodeLon = new double[n];
+        nodeLat = new double[n];
+        for (int i = 0; i < n; i++) {
+            Vertice v = order[(int) keys[i]];
+            v.index = i;
+            nodeId[i] = v.id;
+            nodeLon[i] = v.lon;
+            nodeLat[i] = v.lat;
+        }
+        adjStart = new int[n + 1];
+        int[] buffer = new int[16];
+        byte[] classes = new byte[16];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            Vertice v = order[(int) keys[i]];
+            adjStart[v.index] = size;
+            for (int a = 0; a < v.adjacent.size(); a++) {
+                int wi = vertice.get(v.adjacent.get(a)).index;
+                byte wayClass = v.adjacentClass.get(a);
+                if (wi == v.index) {
+                    continue;
+                }
+                /* Of two ways joining the same vertices, the edge takes the more important. */
+                int e = indexOf(buffer, adjStart[v.index], size, wi);
+                if (e >= 0) {
+                    classes[e] = (byte) Math.min(classes[e], wayClass);
+                    continue;
+                }
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, size * 2);
+                    classes = Arrays.copyOf(classes, size * 2);
+                }
+                buffer[size] = wi;
+                classes[size] = wayClass;
+                size += 1;
+            }
+        }
+        adjStart[n] = size;
+        adjList = Arrays.copyOf(buffer, size);
+        adjClass = Arrays.copyOf(classes, size);
+    }
+
+    private static final int HILBERT_BITS = 15;
+
+    /** Maps a coordinate in [min, max] onto the 2^HILBERT_BITS cells of the curve's grid. */
+    private static int grid(double c, double min, double max) {
+        int cells = 1 << HILBERT_BITS;
+        if (max <= min) {
+            return 0;
+        }
+        return (int) Math.min(cells - 1, (c - min) / (max - min) * cells);
+    }
+
+    /**
+     * Returns the position of grid cell (x, y) along the Hilbert curve.
+     * <a href="https://en.wikipedia.org/wiki/Hilbert_curve">Source</a>.
+     */
+    static long hilbert(int x, int y) {
+        long d = 0;
+        for (int s = 1 << (HILBERT_BITS - 1); s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private static int indexOf(int[] a, int from, int to, int x) {
+        for (int i = from; i < to; i++) {
+            if (a[i] == x) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Labels every vertex with the id of its connected component, using a breadth first
+     * search over the dense adjacency arrays.
+     */
+    private void labelComponents() {
+        int n = nodeId.length;
+        component = new int[n];
+        Arrays.fill(component, -1);
+        int[] queue = new int[n];
+        int[] sizes = new int[n];
+        int count = 0;
+        for (int s = 0; s < n; s++) {
+            if (component[s] != -1) {
+                continue;
+            }
+            int head = 0, tail = 0;
+            queue[tail++] = s;
+            component[s] = count;
+            while (head < tail) {
+                int v = queue[head++];
+                for (int e = adjStart[v]; e < adjStart[v + 1]; e++) {
+                    int w = adjList[e];
+                    if (component[w] == -1) {
+                        component[w] = count;
+                        queue[tail++] = w;
+                    }
+                }
+            }
+            sizes[count] = tail;
+            if (tail > sizes[largestComponent]) {
+                largestComponent = count;
+            }
+            count += 1;
+        }
+        componentSize = Arrays.copyOf(sizes, count);
+    }
+
+    /**
+     * Returns the id of the connected component vertex v belongs to.
+     * @param v The id of the vertex.
+     */
+    int component(long v) {
+        return component[vertice.get(v).index];
+    }
+
+    /**
+     * Returns whether there is any path between vertices v and w, in constant time.
+     * @param v The id of the first vertex.
+     * @param w The id of the second vertex.
+     */
+    boolean connected(long v, long w) {
+        return component(v) == component(w);
+    }
+
     /**
      * Returns an iterable of all vertex IDs in the graph.
      * @return An iterable of id's of all vertices in the graph.
@@ -96,6 +288,29 @@ public class GraphDB {
         return vertice.get(v).adjacent;
     }
 
+    /**
+     * Returns the way class of the edge between dense vertices v and w, an index into
+     * WAY_CLASSES, or -1 if they are not adjacent.
+     */
+    int wayClass(int v, int w) {
+        for (int e = adjStart[v]; e < adjStart[v + 1]; e++) {
+            if (adjList[e] == w) {
+                return adjClass[e];
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the way class of a highway type, or that of unclassified roads if unknown. */
+    static int wayClass(String highway) {
+        for (int c = 0; c < WAY_CLASSES.length; c++) {
+            if (WAY_CLASSES[c].equals(highway)) {
+                return c;
+            }
+        }
+        return wayClass("unclassified");
+    }
+
     /**
      * Returns the great-circle distance between vertices v and w in miles.
      * Assumes the lon/lat methods are implemented properly.
@@ -154,16 +369,33 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        double maxRange = Double.MAX_VALUE;
-        double minV = maxRange;
-        long minID = 0;
-        for (long i : vertice.keySet()) {
-            if (distance(lon, lat, lon(i), lat(i)) < minV) {
-                minID = i;
-                minV = distance(lon, lat, lon(i), lat(i));
+        double minV = Double.MAX_VALUE;
+        int minIndex = 0;
+        for (int i = 0; i < nodeId.length; i++) {
+            double d = distance(lon, lat, nodeLon[i], nodeLat[i]);
+            if (d < minV) {
+                minIndex = i;
+                minV = d;
             }
         }
-        return minID;
+        return nodeId[minIndex];
+    }
+
+    /**
+     * Returns the point on a road closest to the given longitude and latitude. Unlike
+     * closest, this may be in the middle of an edge, which matters on long straight roads
+     * where the nearest vertex can be far from where the user clicked.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The edge and the position along it, or null if the graph has no edges.
+     */
+    EdgeSnap snap(double lon, double lat) {
+        int s = segments.nearest(lon, lat);
+        if (s < 0) {
+            return null;
+        }
+        return new EdgeSnap(this, segments.segFrom[s], segments.segTo[s],
+                segments.fraction(s, lon, lat));
     }
 
     /**
@@ -192,10 +424,10 @@ public class GraphDB {
         vertice.remove(n.id);
     }
 
-    void addEdge(long v1, long v2) {
+    void addEdge(long v1, long v2, int wayClass) {
         //add continuous two adjacent vertices in the same way to adjs of each other
-        vertice.get(v1).addAdj(v2);
-        vertice.get(v2).addAdj(v1);
+        vertice.get(v1).addAdj(v2, wayClass);
+        vertice.get(v2).addAdj(v1, wayClass);
     }
 
     void addWay(Long id, Way w) {
@@ -243,20 +475,47 @@ public class GraphDB {
         Double lon, lat;
         String name;
         ArrayList<Long> adjacent; //id & distance from target
-        Vertice preNode;
-        double priority;
+        ArrayList<Byte> adjacentClass; //way class of the edge to each of adjacent
+        int index; //position in the dense arrays, assigned once the graph is cleaned
 
         public Vertice(Long id, Double lon, Double lat) {
             this.id = id;
             this.lon = lon;
             this.lat = lat;
             this.adjacent = new ArrayList<>();
+            this.adjacentClass = new ArrayList<>();
             this.name = null;
-            preNode = null;
-            priority = Double.POSITIVE_INFINITY;
         }
-        void addAdj(Long vid) {
+        void addAdj(Long vid, int wayClass) {
             adjacent.add(vid);
+            adjacentClass.add((byte) wayClass);
+        }
+    }
+
+    /**
+     * A point on the edge between dense vertices from and to, a fraction t of the way along.
+     */
+    static class EdgeSnap {
+        final int from, to;
+        final double t;
+        final double lon, lat;
+        /** Distances in miles from the point to each end of the edge. */
+        final double toFrom, toTo;
+
+        EdgeSnap(GraphDB g, int from, int to, double t) {
+            this.from = from;
+            this.to = to;
+            this.t = t;
+            lon = g.nodeLon[from] + t * (g.nodeLon[to] - g.nodeLon[from]);
+            lat = g.nodeLat[from] + t * (g.nodeLat[to] - g.nodeLat[from]);
+            double miles = distance(g.nodeLon[from], g.nodeLat[from],
+                    g.nodeLon[to], g.nodeLat[to]);
+            toFrom = t * miles;
+            toTo = (1 - t) * miles;
+        }
+
+        boolean sameEdge(EdgeSnap o) {
+            return (from == o.from && to == o.to) || (from == o.to && to == o.from);
         }
     }
 
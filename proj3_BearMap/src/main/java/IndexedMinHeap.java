@@ -0,0 +1,84 @@
+/**
+ * A binary min-heap of the integers 0 .. capacity - 1 keyed by doubles, with decrease-key.
+ * Used by Router so that lowering a queued vertex's distance is O(log n) instead of the
+ * O(n) remove + add of java.util.PriorityQueue.
+ */
+public class IndexedMinHeap {
+    /** heap[1 .. size] holds items, pos[item] is its slot in heap or 0 if absent. */
+    private final int[] heap, pos;
+    private final double[] key;
+    private int size;
+
+    IndexedMinHeap(int capacity) {
+        heap = new int[capacity + 1];
+        pos = new int[capacity];
+        key = new double[capacity];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int item) {
+        return pos[item] != 0;
+    }
+
+    /** Returns the smallest key in the heap. The heap must not be empty. */
+    double minKey() {
+        return key[heap[1]];
+    }
+
+    /** Adds item, which must not already be in the heap, with key k. */
+    void insert(int item, double k) {
+        size += 1;
+        heap[size] = item;
+        pos[item] = size;
+        key[item] = k;
+        swim(size);
+    }
+
+    /** Lowers the key of item, which must be in the heap, to k. */
+    void decreaseKey(int item, double k) {
+        key[item] = k;
+        swim(pos[item]);
+    }
+
+    /** Removes and returns the item with the smallest key. */
+    int delMin() {
+        int min = heap[1];
+        swap(1, size);
+        size -= 1;
+        pos[min] = 0;
+        sink(1);
+        return min;
+    }
+
+    private void swim(int i) {
+        while (i > 1 && key[heap[i / 2]] > key[heap[i]]) {
+            swap(i, i / 2);
+            i = i / 2;
+        }
+    }
+
+    private void sink(int i) {
+        while (2 * i <= size) {
+            int j = 2 * i;
+            if (j < size && key[heap[j + 1]] < key[heap[j]]) {
+                j += 1;
+            }
+            if (key[heap[i]] <= key[heap[j]]) {
+                break;
+            }
+            swap(i, j);
+            i = j;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        pos[heap[i]] = i;
+        pos[heap[j]] = j;
+    }
+}
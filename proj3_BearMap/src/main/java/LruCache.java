@@ -0,0 +1,124 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A bounded, thread-safe least-recently-used cache. Entries are weighed (e.g. in bytes) and
+ * the least recently used ones are evicted whenever the total weight exceeds the budget.
+ * Hits, misses and evictions are counted in Metrics under the cache's name, together with
+ * gauges for its current weight, entry count and hit rate.
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final ToLongFunction<V> weigher;
+    private final long maxWeight;
+    private long weight;
+
+    private final Metrics.Counter hits, misses, evictions;
+
+    /**
+     * @param name Name of the cache in Metrics, e.g. "tile_cache".
+     * @param maxWeight The budget; the total weight of the entries never exceeds it.
+     * @param weigher Gives the weight of a value.
+     */
+    LruCache(String name, long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        hits = Metrics.counter(name + ".hits");
+        misses = Metrics.counter(name + ".misses");
+        evictions = Metrics.counter(name + ".evictions");
+        Metrics.gauge(name + ".weight", this::weight);
+        Metrics.gauge(name + ".entries", this::size);
+        Metrics.gauge(name + ".hit_rate", this::hitRate);
+    }
+
+    /**
+     * Returns the cached value for key, or null if there is none.
+     */
+    V get(K key) {
+        V value;
+        synchronized (this) {
+            value = map.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the cached value for key, computing and caching it on a miss. The loader runs
+     * outside the cache's lock, so two threads missing on the same key at once may both load
+     * it. Null results are returned but not cached.
+     */
+    V get(K key, Function<K, V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if key is cached, without counting a hit or miss or refreshing its age.
+     */
+    synchronized boolean contains(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Caches value under key, then evicts least recently used entries until the cache is
+     * within its budget. A value heavier than the whole budget is not cached.
+     */
+    void put(K key, V value) {
+        long w = weigher.applyAsLong(value);
+        if (w > maxWeight) {
+            return;
+        }
+        int evicted = 0;
+        synchronized (this) {
+            V old = map.put(key, value);
+            if (old != null) {
+                weight -= weigher.applyAsLong(old);
+            }
+            weight += w;
+            Iterator<Map.Entry<K, V>> eldest = map.entrySet().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                weight -= weigher.applyAsLong(eldest.next().getValue());
+                eldest.remove();
+                evicted += 1;
+            }
+        }
+        evictions.add(evicted);
+    }
+
+    /** Removes every entry. */
+    synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    /** Returns the fraction of lookups so far that were hits. */
+    double hitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
@@ -2,21 +2,45 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 import static spark.Spark.*;
 
@@ -40,6 +64,18 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response for a request turned away because the server is busy. */
+    private static final int UNAVAILABLE_RESPONSE = 503;
+    /** How long a client turned away should wait before trying again, in seconds. */
+    private static final int RETRY_AFTER_SECONDS = 1;
+    /** HTTP response for a raster query that has no image. */
+    private static final int NO_CONTENT_RESPONSE = 204;
+    /** HTTP response for a tile the client already has. */
+    private static final int NOT_MODIFIED_RESPONSE = 304;
+    /** HTTP response for a tile outside the pyramid. */
+    private static final int NOT_FOUND_RESPONSE = 404;
+    /** How long clients may use a tile without checking back, in seconds. */
+    private static final int TILE_MAX_AGE_SECONDS = 24 * 60 * 60;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
@@ -51,6 +87,96 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /**
+     * The tile archive written by TileArchive, used instead of IMG_ROOT if it exists. Can be
+     * changed with the bearmaps.tileArchive system property.
+     */
+    private static final String DEFAULT_TILE_ARCHIVE_PATH =
+            "../library-sp18/data/proj3_imgs.tiles";
+    /**
+     * Rasters are drawn at depths up to this, by default the depth of the pre-rendered
+     * pyramid. Setting the bearmaps.maxDepth system property deeper turns on TileRenderer,
+     * which draws the deeper tiles from the graph and keeps them in
+     * DEFAULT_RENDERED_TILES_PATH, or wherever bearmaps.renderedTiles says.
+     */
+    private static final int DEFAULT_MAX_DEPTH = Rasterer.MAX_DEPTH;
+    private static final String DEFAULT_RENDERED_TILES_PATH =
+            "../library-sp18/data/proj3_rendered/";
+    /**
+     * Memory budget, in bytes of decoded pixels, of the tile cache. Can be changed with the
+     * bearmaps.tileCacheBytes system property.
+     */
+    private static final long DEFAULT_TILE_CACHE_BYTES = 256L << 20;
+    /**
+     * Memory budget, in bytes of encoded PNG, of the raster cache. Can be changed with the
+     * bearmaps.rasterCacheBytes system property.
+     */
+    private static final long DEFAULT_RASTER_CACHE_BYTES = 64L << 20;
+    /**
+     * Number of threads decoding tiles for rasters. Can be changed with the
+     * bearmaps.tileDecodeThreads system property.
+     */
+    private static final int DEFAULT_TILE_DECODE_THREADS =
+            Runtime.getRuntime().availableProcessors();
+    /**
+     * The most client sessions to keep a route for. Can be changed with the
+     * bearmaps.maxSessions system property.
+     */
+    private static final int DEFAULT_MAX_SESSIONS = 10000;
+    /**
+     * How long a client session keeps its route without being used, in milliseconds. Can be
+     * changed with the bearmaps.sessionIdleMillis system property.
+     */
+    private static final long DEFAULT_SESSION_IDLE_MILLIS = 30 * 60 * 1000;
+    /**
+     * Most and fewest threads of the web server's pool, how long an idle thread above the
+     * fewest is kept, in milliseconds, and how many requests may wait for a thread. Can be
+     * changed with the bearmaps.maxThreads, bearmaps.minThreads, bearmaps.threadIdleMillis
+     * and bearmaps.queueSize system properties.
+     */
+    private static final int DEFAULT_MAX_THREADS = 200, DEFAULT_MIN_THREADS = 8,
+            DEFAULT_THREAD_IDLE_MILLIS = 60000, DEFAULT_QUEUE_SIZE = 1024;
+    /**
+     * How many raster requests may be drawn at once, how many may wait for their turn, and
+     * for how long, in milliseconds. Can be changed with the bearmaps.rasterConcurrency,
+     * bearmaps.rasterWaiting and bearmaps.admissionWaitMillis system properties.
+     */
+    private static final int DEFAULT_RASTER_CONCURRENCY =
+            Runtime.getRuntime().availableProcessors() * 2, DEFAULT_RASTER_WAITING = 32;
+    private static final long DEFAULT_ADMISSION_WAIT_MILLIS = 2000;
+    /**
+     * How many route requests may be searched at once and how many may wait. Can be changed
+     * with the bearmaps.routeConcurrency and bearmaps.routeWaiting system properties.
+     */
+    private static final int DEFAULT_ROUTE_CONCURRENCY =
+            Runtime.getRuntime().availableProcessors() * 2, DEFAULT_ROUTE_WAITING = 64;
+    /**
+     * The most pixels a raster may have, whatever the viewport. Can be changed with the
+     * bearmaps.maxRasterPixels system property.
+     */
+    private static final long DEFAULT_MAX_RASTER_PIXELS = 32L << 20;
+    /**
+     * How many tiles to prefetch after each raster, and how many may wait to be prefetched.
+     * Can be changed with the bearmaps.prefetchTiles and bearmaps.prefetchQueue system
+     * properties; bearmaps.prefetch=false turns prefetching off.
+     */
+    private static final int DEFAULT_PREFETCH_TILES = 24, DEFAULT_PREFETCH_QUEUE = 256;
+    /**
+     * The tiles of depths 0 through this are loaded into the tile cache at startup. Can be
+     * changed with the bearmaps.warmupDepth system property; -1 turns warm-up off. The
+     * (4^(depth+1) - 1) / 3 tiles take 256 KB each, and should fit in the tile cache.
+     */
+    private static final int DEFAULT_WARMUP_DEPTH = 4;
+    /**
+     * The deflate level of fast PNG rasters, and the quality of JPEG rasters. Can be changed
+     * with the bearmaps.pngFastLevel and bearmaps.jpegQuality system properties. Rasters are
+     * PNG as ImageIO writes it by default unless a request or bearmaps.rasterFormat asks for
+     * png_fast, jpeg or indexed.
+     */
+    private static final int DEFAULT_PNG_FAST_LEVEL = 1;
+    private static final float DEFAULT_JPEG_QUALITY = 0.85f;
+    /** The cookie holding the client's session id. */
+    private static final String SESSION_COOKIE = "bearmaps_session";
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -61,6 +187,9 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_RASTER_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
         "lrlon", "w", "h"};
+    /** Each /roads request with a query box must have these parameters. */
+    private static final String[] REQUIRED_ROADS_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
+        "lrlon"};
     /**
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
@@ -70,6 +199,12 @@ public class MapServer {
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
 
+    /** The response headers carrying the results of /raster.png, besides the image itself. */
+    private static final String[] RASTER_HEADERS = {"X-Raster-Ul-Lon", "X-Raster-Ul-Lat",
+        "X-Raster-Lr-Lon", "X-Raster-Lr-Lat", "X-Raster-Depth", "X-Raster-Width",
+        "X-Raster-Height", "X-Raster-Query-Success", "X-Raster-Full-Depth",
+        "X-Raster-Max-Depth"};
+
     /**
      * The result of rastering must be a map containing all of the
      * fields listed in the comments for getMapRaster in Rasterer.java.
@@ -79,7 +214,42 @@ public class MapServer {
 
     private static Rasterer rasterer;
     private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /** The current route of each client session. */
+    private static SessionRoutes routes;
+    /** Decoded tile images, keyed by file name. */
+    private static LruCache<String, BufferedImage> tileCache;
+    /** Encoded raster images, keyed by tile range and route (see rasterKey). */
+    private static LruCache<String, byte[]> rasterCache;
+    private static final Metrics.Histogram RENDER_TIME = Metrics.histogram("raster.render_time");
+    private static final Metrics.Histogram REQUEST_TIME = Metrics.histogram("http.request_time");
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    /** The request attribute holding when the request started, in nanoseconds. */
+    private static final String REQUEST_START = "bearmaps.start";
+    private static final Metrics.Counter TILES_SENT = Metrics.counter("tiles.sent");
+    private static final Metrics.Counter TILES_NOT_MODIFIED = Metrics.counter("tiles.not_modified");
+    private static final Metrics.Counter PREVIEWS_SENT = Metrics.counter("raster.previews");
+    private static final Metrics.Counter ROAD_TILE_BYTES = Metrics.counter("roads.bytes");
+    /** Whether the tile cache has been warmed up; see warmUp. */
+    private static volatile boolean ready;
+    /** Encodes raster images, in defaultFormat unless a request asks for another. */
+    private static RasterEncoder encoder;
+    private static RasterEncoder.Format defaultFormat;
+    /** Loads the tiles clients will likely want next, or null if prefetching is off. */
+    private static TilePrefetcher prefetcher;
+    /** Admission control for the raster endpoints and the route endpoint. */
+    private static Bulkhead rasterBulkhead, routeBulkhead;
+    private static long maxRasterPixels;
+    /** The packed tile pyramid, or null to read tiles from their files under IMG_ROOT. */
+    private static TileArchive tileArchive;
+    /** Draws tiles deeper than the pyramid, or null if rasters stay within it. */
+    private static TileRenderer renderer;
+    /** Coalesces concurrent drawing of the same raster image, and decoding of the same tile. */
+    private static final SingleFlight<String, byte[]> RASTER_FLIGHTS =
+            new SingleFlight<>("raster_flights");
+    private static final SingleFlight<String, BufferedImage> TILE_FLIGHTS =
+            new SingleFlight<>("tile_flights");
+    /** Decodes the tiles of a raster that are not in the tile cache, in parallel. */
+    private static ExecutorService tileDecoder;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -90,11 +260,62 @@ public class MapServer {
      **/
     public static void initialize() {
         graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer();
+        rasterer = new Rasterer(Math.max(Rasterer.MAX_DEPTH,
+                Integer.getInteger("bearmaps.maxDepth", DEFAULT_MAX_DEPTH)));
+        if (rasterer.maxDepth() > Rasterer.MAX_DEPTH) {
+            renderer = new TileRenderer(graph, new File(
+                    System.getProperty("bearmaps.renderedTiles", DEFAULT_RENDERED_TILES_PATH)));
+        }
+        tileCache = new LruCache<>("tile_cache",
+                Long.getLong("bearmaps.tileCacheBytes", DEFAULT_TILE_CACHE_BYTES),
+                MapServer::imageBytes);
+        rasterCache = new LruCache<>("raster_cache",
+                Long.getLong("bearmaps.rasterCacheBytes", DEFAULT_RASTER_CACHE_BYTES),
+                png -> png.length);
+        routes = new SessionRoutes(
+                Integer.getInteger("bearmaps.maxSessions", DEFAULT_MAX_SESSIONS),
+                Long.getLong("bearmaps.sessionIdleMillis", DEFAULT_SESSION_IDLE_MILLIS));
+        encoder = new RasterEncoder(
+                Integer.getInteger("bearmaps.pngFastLevel", DEFAULT_PNG_FAST_LEVEL),
+                Float.parseFloat(System.getProperty("bearmaps.jpegQuality",
+                        String.valueOf(DEFAULT_JPEG_QUALITY))));
+        defaultFormat = RasterEncoder.Format.of(
+                System.getProperty("bearmaps.rasterFormat", RasterEncoder.Format.PNG.key));
+        if (defaultFormat == null) {
+            defaultFormat = RasterEncoder.Format.PNG;
+        }
+        long admissionWait =
+                Long.getLong("bearmaps.admissionWaitMillis", DEFAULT_ADMISSION_WAIT_MILLIS);
+        rasterBulkhead = new Bulkhead("raster_bulkhead",
+                Integer.getInteger("bearmaps.rasterConcurrency", DEFAULT_RASTER_CONCURRENCY),
+                Integer.getInteger("bearmaps.rasterWaiting", DEFAULT_RASTER_WAITING),
+                admissionWait);
+        routeBulkhead = new Bulkhead("route_bulkhead",
+                Integer.getInteger("bearmaps.routeConcurrency", DEFAULT_ROUTE_CONCURRENCY),
+                Integer.getInteger("bearmaps.routeWaiting", DEFAULT_ROUTE_WAITING),
+                admissionWait);
+        maxRasterPixels = Long.getLong("bearmaps.maxRasterPixels", DEFAULT_MAX_RASTER_PIXELS);
+        tileArchive = openTileArchive(
+                System.getProperty("bearmaps.tileArchive", DEFAULT_TILE_ARCHIVE_PATH));
+        if (Boolean.parseBoolean(System.getProperty("bearmaps.prefetch", "true"))) {
+            prefetcher = new TilePrefetcher(
+                    Integer.getInteger("bearmaps.maxSessions", DEFAULT_MAX_SESSIONS),
+                    Integer.getInteger("bearmaps.prefetchQueue", DEFAULT_PREFETCH_QUEUE),
+                    Integer.getInteger("bearmaps.prefetchTiles", DEFAULT_PREFETCH_TILES),
+                    rasterer.maxDepth(),
+                    tileCache::contains, name -> TILE_FLIGHTS.run(name, MapServer::loadTile),
+                    () -> rasterBulkhead.active() > 0);
+        }
+        tileDecoder = Executors.newFixedThreadPool(
+                Integer.getInteger("bearmaps.tileDecodeThreads", DEFAULT_TILE_DECODE_THREADS),
+                daemonThreads("tile-decoder", Thread.NORM_PRIORITY));
+        warmUp(Math.min(Rasterer.MAX_DEPTH,
+                Integer.getInteger("bearmaps.warmupDepth", DEFAULT_WARMUP_DEPTH)));
     }
 
     public static void main(String[] args) {
         initialize();
+        configureThreadPool();
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -104,47 +325,185 @@ public class MapServer {
             response.header("Access-Control-Allow-Headers", "*");
         });
 
+        /* Time every request, and count the ones in progress. */
+        before((request, response) -> {
+            IN_FLIGHT.incrementAndGet();
+            request.attribute(REQUEST_START, System.nanoTime());
+        });
+        afterAfter((request, response) -> {
+            Long start = request.attribute(REQUEST_START);
+            if (start != null) {
+                IN_FLIGHT.decrementAndGet();
+                REQUEST_TIME.record(System.nanoTime() - start);
+            }
+        });
+
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
-        get("/raster", (req, res) -> {
+        get("/raster", admitted(rasterBulkhead, (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            /* raster() does almost all the work for this API call */
+            Rasterer.Raster raster = rasterer.raster(params.get("ullon"), params.get("ullat"),
+                    params.get("lrlon"), params.get("lrlat"), params.get("w"));
+            Map<String, Object> rasteredImgParams = raster.toMap();
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
             if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+                checkRasterSize(raster, params);
+                String session = session(req, res);
+                byte[] png = getRasterImage(raster, rasteredImgParams, routes.get(session),
+                        RasterEncoder.Format.PNG);
+                prefetch(session, raster);
+                rasteredImgParams.put("raster_width", raster.columns() * TILE_SIZE);
+                rasteredImgParams.put("raster_height", raster.rows() * TILE_SIZE);
+                String encodedImage = Base64.getEncoder().encodeToString(png);
                 rasteredImgParams.put("b64_encoded_image_data", encodedImage);
             }
 
             /* Encode response to Json */
             Gson gson = new Gson();
             return gson.toJson(rasteredImgParams);
-        });
+        }));
+
+        /* Define the binary raster endpoint: the same raster as /raster, but the PNG is sent
+         * as is and the rest of the results are sent as X-Raster-* response headers. The route
+         * is not drawn on it; see /route_overlay. With format=png_fast, jpeg or indexed, or an
+         * Accept header asking for JPEG, the image is encoded more cheaply instead. With
+         * viewport=true, the image covers exactly the query box at the viewport's size, rather
+         * than whole tiles. With preview=n, the image is drawn from tiles n depths shallower
+         * than the query needs, which are few and most likely cached, so that clients can show
+         * it while the full raster is on its way. */
+        get("/raster.png", admitted(rasterBulkhead, (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            Rasterer.Raster raster = rasterer.raster(params.get("ullon"), params.get("ullat"),
+                    params.get("lrlon"), params.get("lrlat"), params.get("w"));
+            Map<String, Object> rasteredImgParams = raster.toMap();
+            res.header("Access-Control-Expose-Headers", String.join(", ", RASTER_HEADERS));
+            boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
+            res.header("X-Raster-Query-Success", String.valueOf(rasterSuccess));
+            if (!rasterSuccess) {
+                res.status(NO_CONTENT_RESPONSE);
+                return "";
+            }
+            checkRasterSize(raster, params);
+            res.header("X-Raster-Full-Depth", String.valueOf(raster.depth));
+            res.header("X-Raster-Max-Depth", String.valueOf(rasterer.maxDepth()));
+            int preview = previewLevels(req.queryParams("preview"));
+            if (preview > 0) {
+                /* Previews are not views of their own, so they do not move the prefetcher. */
+                raster = Rasterer.cover(Math.max(0, raster.depth - preview),
+                        params.get("ullon"), params.get("ullat"), params.get("lrlon"),
+                        params.get("lrlat"), true);
+                rasteredImgParams = raster.toMap();
+                PREVIEWS_SENT.increment();
+            } else {
+                prefetch(session(req, res), raster);
+            }
+            res.header("X-Raster-Depth", String.valueOf(raster.depth));
+            RasterEncoder.Format format = RasterEncoder.choose(req.queryParams("format"),
+                    req.headers("Accept"), defaultFormat);
+            res.type(format.contentType);
+            res.header("Vary", "Accept");
+            if (!Boolean.parseBoolean(req.queryParams("viewport"))) {
+                rasterHeaders(res, raster.ulLon, raster.ulLat, raster.lrLon, raster.lrLat,
+                        raster.columns() * TILE_SIZE, raster.rows() * TILE_SIZE);
+                return getRasterImage(raster, rasteredImgParams, Router.Route.EMPTY, format);
+            }
+            /* In viewport mode, the image is cut to the query box, as far as there is map,
+             * and scaled to the viewport. */
+            double ullon = Math.max(params.get("ullon"), raster.ulLon);
+            double ullat = Math.min(params.get("ullat"), raster.ulLat);
+            double lrlon = Math.min(params.get("lrlon"), raster.lrLon);
+            double lrlat = Math.max(params.get("lrlat"), raster.lrLat);
+            int width = (int) Math.max(1, Math.round(params.get("w") * (lrlon - ullon)
+                    / (params.get("lrlon") - params.get("ullon"))));
+            int height = (int) Math.max(1, Math.round(params.get("h") * (ullat - lrlat)
+                    / (params.get("ullat") - params.get("lrlat"))));
+            rasterHeaders(res, ullon, ullat, lrlon, lrlat, width, height);
+            return getViewportImage(raster, rasteredImgParams, ullon, ullat, lrlon, lrlat,
+                    width, height, format);
+        }));
+
+        /* Define the endpoint for single tiles of the pyramid, e.g. /tiles/3/2/5.png, which
+         * browsers and caches in between may keep. Tiles past the pyramid may have to be drawn
+         * first, so they are admitted like rasters. */
+        spark.Route renderedTile = admitted(rasterBulkhead, MapServer::serveTile);
+        get("/tiles/:depth/:x/:y", (req, res) ->
+                tileParam(req.params(":depth"), Integer.MAX_VALUE) > Rasterer.MAX_DEPTH
+                        ? renderedTile.handle(req, res) : serveTile(req, res));
+
+        /* Define the endpoints for the roads of a tile, e.g. /roads/9/300/200, or of a query
+         * box, as vector tiles for clients to draw themselves; see RoadTiles. The way classes
+         * the tiles refer to are listed in the X-Road-Classes header. A shallow tile covers
+         * most of the map, so both are admitted like rasters. */
+        get("/roads/:depth/:x/:y", admitted(rasterBulkhead, (req, res) -> {
+            int depth = tileParam(req.params(":depth"), RoadTiles.MAX_DEPTH + 1);
+            int n = 1 << Math.max(depth, 0);
+            int x = tileParam(req.params(":x"), n);
+            int y = tileParam(req.params(":y"), n);
+            if (depth < 0 || x < 0 || y < 0) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            Rasterer.Raster tile = new Rasterer.Raster(depth, x, x, y, y, true);
+            res.header("Cache-Control", "public, max-age=" + TILE_MAX_AGE_SECONDS);
+            return roads(res, tile.ulLon, tile.ulLat, tile.lrLon, tile.lrLat);
+        }));
+        get("/roads", admitted(rasterBulkhead, (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ROADS_REQUEST_PARAMS);
+            if (!RoadTiles.encodable(params.get("ullon"), params.get("ullat"),
+                    params.get("lrlon"), params.get("lrlat"))) {
+                halt(HALT_RESPONSE, "Incorrect parameters - the box is empty or too small.");
+            }
+            return roads(res, params.get("ullon"), params.get("ullat"), params.get("lrlon"),
+                    params.get("lrlat"));
+        }));
 
         /* Define the routing endpoint for HTTP GET requests. */
-        get("/route", (req, res) -> {
+        get("/route", admitted(routeBulkhead, (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            Router.SearchStats stats = new Router.SearchStats();
+            Router.Route route = Router.route(graph, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"), stats);
+            routes.put(session(req, res), route);
+            String directions = getDirectionsText(route);
             Map<String, Object> routeParams = new HashMap<>();
             routeParams.put("routing_success", !route.isEmpty());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
+            /* With debug=true, report how much searching this route took. */
+            if (Boolean.parseBoolean(req.queryParams("debug"))) {
+                routeParams.put("search_stats", stats.toMap());
+            }
             Gson gson = new Gson();
             return gson.toJson(routeParams);
+        }));
+
+        /* Define the API endpoint for the current route's polyline, for clients to draw over
+         * plain rasters themselves. A client without a session has no route, and is not given
+         * a session here: this goes out alongside the first raster, which gives it one. */
+        get("/route_overlay", (req, res) -> {
+            String session = existingSession(req);
+            Router.Route r = session == null ? Router.Route.EMPTY : routes.get(session);
+            Map<String, Object> overlay = new HashMap<>();
+            overlay.put("route_id", r.id);
+            overlay.put("lon", r.lon);
+            overlay.put("lat", r.lat);
+            res.type("application/json");
+            Gson gson = new Gson();
+            return gson.toJson(overlay);
         });
 
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            String session = existingSession(req);
+            if (session != null) {
+                clearRoute(session);
+            }
             return true;
         });
 
@@ -164,6 +523,26 @@ public class MapServer {
             }
         });
 
+        /* Define the readiness endpoint, which fails until the tile cache is warmed up, so
+         * that a load balancer can hold traffic back from a freshly started server. */
+        get("/ready", (req, res) -> {
+            res.type("application/json");
+            if (!ready) {
+                res.status(UNAVAILABLE_RESPONSE);
+            }
+            Map<String, Object> status = new HashMap<>();
+            status.put("ready", ready);
+            Gson gson = new Gson();
+            return gson.toJson(status);
+        });
+
+        /* Define the API endpoint for reading the server's counters and latency histograms. */
+        get("/metrics", (req, res) -> {
+            res.type("application/json");
+            Gson gson = new Gson();
+            return gson.toJson(Metrics.snapshot());
+        });
+
         /* Define map application redirect */
         get("/", (request, response) -> {
             response.redirect("/map.html", 301);
@@ -171,6 +550,84 @@ public class MapServer {
         });
     }
 
+    /**
+     * Sets up the thread pool of the embedded Jetty server from the bearmaps.* system
+     * properties, and publishes its threads and queue in Metrics. With bearmaps.virtualThreads
+     * set, every request runs on a virtual thread instead, where Java has them. Must run
+     * before the first route is defined, which starts the server.
+     */
+    private static void configureThreadPool() {
+        ThreadPool pool = null;
+        if (Boolean.getBoolean("bearmaps.virtualThreads")) {
+            VirtualThreadPool virtual = VirtualThreadPool.create();
+            if (virtual == null) {
+                System.out.println("Virtual threads need Java 21 or later, using a thread pool.");
+            } else {
+                Metrics.gauge("server.busy_threads", virtual::getBusyThreads);
+                pool = virtual;
+            }
+        }
+        if (pool == null) {
+            QueuedThreadPool queued = new QueuedThreadPool(
+                    Integer.getInteger("bearmaps.maxThreads", DEFAULT_MAX_THREADS),
+                    Integer.getInteger("bearmaps.minThreads", DEFAULT_MIN_THREADS),
+                    Integer.getInteger("bearmaps.threadIdleMillis", DEFAULT_THREAD_IDLE_MILLIS),
+                    new BlockingArrayQueue<>(
+                            Integer.getInteger("bearmaps.queueSize", DEFAULT_QUEUE_SIZE)));
+            queued.setName("http");
+            Metrics.gauge("server.threads", queued::getThreads);
+            Metrics.gauge("server.busy_threads", queued::getBusyThreads);
+            Metrics.gauge("server.idle_threads", queued::getIdleThreads);
+            Metrics.gauge("server.queue_size", queued::getQueueSize);
+            pool = queued;
+        }
+        Metrics.gauge("http.in_flight", IN_FLIGHT::get);
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
+                new EmbeddedJettyFactory().withThreadPool(pool));
+    }
+
+    /** Sets the X-Raster-* headers describing the image of a /raster.png response. */
+    private static void rasterHeaders(spark.Response res, double ullon, double ullat,
+                                      double lrlon, double lrlat, int width, int height) {
+        res.header("X-Raster-Ul-Lon", String.valueOf(ullon));
+        res.header("X-Raster-Ul-Lat", String.valueOf(ullat));
+        res.header("X-Raster-Lr-Lon", String.valueOf(lrlon));
+        res.header("X-Raster-Lr-Lat", String.valueOf(lrlat));
+        res.header("X-Raster-Width", String.valueOf(width));
+        res.header("X-Raster-Height", String.valueOf(height));
+    }
+
+    /**
+     * Returns a route that runs the given one only if the bulkhead admits it, and otherwise
+     * responds at once that the server is busy, telling the client when to try again.
+     */
+    private static spark.Route admitted(Bulkhead bulkhead, spark.Route route) {
+        return (req, res) -> {
+            if (!bulkhead.tryEnter()) {
+                res.header("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+                halt(UNAVAILABLE_RESPONSE, "Server busy - try again shortly.");
+            }
+            try {
+                return route.handle(req, res);
+            } finally {
+                bulkhead.exit();
+            }
+        };
+    }
+
+    /**
+     * Halts the request if its raster would be larger than a viewport of the requested size
+     * can need, or larger than the server allows, before any memory is spent on it.
+     */
+    private static void checkRasterSize(Rasterer.Raster raster, Map<String, Double> params) {
+        long pixels = (long) raster.columns() * raster.rows() * TILE_SIZE * TILE_SIZE;
+        /* Depths go in steps of 2x, and tiles may stick out one tile on each side. */
+        double needed = 4 * (params.get("w") + 2 * TILE_SIZE) * (params.get("h") + 2 * TILE_SIZE);
+        if (pixels > Math.min(needed, maxRasterPixels)) {
+            halt(HALT_RESPONSE, "Requested raster is too large.");
+        }
+    }
+
     /**
      * Validate & return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -197,13 +654,50 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Returns the image for a raster with the given route drawn on it, encoded in a format.
+     * Views of the same tiles with the same route in the same format are served from the
+     * raster cache, skipping compositing and encoding altogether. Plain rasters, with
+     * Route.EMPTY, are cached regardless of the current route, so they stay cached as routes
+     * come and go. Requests for an image that another request is already drawing wait for
+     * that one instead of drawing it again.
+     */
+    private static byte[] getRasterImage(Rasterer.Raster raster,
+                                         Map<String, Object> rasteredImgParams,
+                                         Router.Route toDraw, RasterEncoder.Format format) {
+        String rasterKey = rasterKey(raster, toDraw) + "/" + format.key;
+        return RASTER_FLIGHTS.run(rasterKey, key -> rasterCache.get(key, k -> {
+            long start = System.nanoTime();
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            writeImagesToOutputStream(rasteredImgParams, toDraw, format, os);
+            RENDER_TIME.record(System.nanoTime() - start);
+            return os.toByteArray();
+        }));
+    }
+
+    /** The raster image key: depth, tile ranges, and which route is drawn, if any. */
+    private static String rasterKey(Rasterer.Raster raster, Router.Route r) {
+        String key = raster.depth + "/" + raster.xStart + "-" + raster.xEnd + "/"
+                + raster.yStart + "-" + raster.yEnd;
+        return r.isEmpty() ? key : key + "/" + r.id;
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
      */
     private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
+                                                  Router.Route toDraw,
+                                                  RasterEncoder.Format format,
                                                   ByteArrayOutputStream os) {
+        byte[] encoded = encoder.encode(compositeImage(rasteredImageParams, toDraw), format);
+        os.write(encoded, 0, encoded.length);
+    }
+
+    /** Returns the image of the tiles of rasteredImageParams, with the given route drawn on it. */
+    private static BufferedImage compositeImage(Map<String, Object> rasteredImageParams,
+                                                Router.Route toDraw) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
         int numVertTiles = renderGrid.length;
         int numHorizTiles = renderGrid[0].length;
@@ -211,15 +705,23 @@ public class MapServer {
         BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
                 numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
         Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        BufferedImage[][] tiles = getTiles(renderGrid);
 
+        /* Copy every tile in, one row of pixels at a time. */
         for (int r = 0; r < numVertTiles; r += 1) {
             for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
+                BufferedImage tile = tiles[r][c];
+                if (tile == null) {
+                    continue;
+                }
+                int[] tilePixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+                int width = Math.min(tile.getWidth(), MapServer.TILE_SIZE);
+                int height = Math.min(tile.getHeight(), MapServer.TILE_SIZE);
+                int offset = r * MapServer.TILE_SIZE * img.getWidth() + c * MapServer.TILE_SIZE;
+                for (int row = 0; row < height; row++) {
+                    System.arraycopy(tilePixels, row * tile.getWidth(),
+                            pixels, offset + row * img.getWidth(), width);
                 }
             }
         }
@@ -232,29 +734,325 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        if (!toDraw.isEmpty()) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            /* Draw only the points that make a difference at this depth, and only the stretches
+             * of the route that come near the raster, as one path. */
+            int[] kept = toDraw.simplified((int) rasteredImageParams.get("depth"));
+            double margin = MapServer.ROUTE_STROKE_WIDTH_PX;
+            Path2D.Double path = new Path2D.Double();
+            boolean drawing = false;
+            for (int k = 1; k < kept.length; k++) {
+                double x0 = (toDraw.lon[kept[k - 1]] - ullon) / wdpp;
+                double y0 = (ullat - toDraw.lat[kept[k - 1]]) / hdpp;
+                double x1 = (toDraw.lon[kept[k]] - ullon) / wdpp;
+                double y1 = (ullat - toDraw.lat[kept[k]]) / hdpp;
+                if (Math.max(x0, x1) < -margin || Math.min(x0, x1) > img.getWidth() + margin
+                        || Math.max(y0, y1) < -margin
+                        || Math.min(y0, y1) > img.getHeight() + margin) {
+                    drawing = false;
+                    continue;
+                }
+                if (!drawing) {
+                    path.moveTo(x0, y0);
+                    drawing = true;
+                }
+                path.lineTo(x1, y1);
+            }
+            g2d.draw(path);
+        }
+        return img;
+    }
+
+    /**
+     * Returns the image of exactly a box within a raster, scaled to the given size and
+     * encoded in a format. These are not cached, since no two views are quite the same.
+     */
+    private static byte[] getViewportImage(Rasterer.Raster raster,
+                                           Map<String, Object> rasteredImgParams,
+                                           double ullon, double ullat, double lrlon,
+                                           double lrlat, int width, int height,
+                                           RasterEncoder.Format format) {
+        String key = rasterKey(raster, Router.Route.EMPTY) + "/" + ullon + "," + ullat + ","
+                + lrlon + "," + lrlat + "/" + width + "x" + height + "/" + format.key;
+        return RASTER_FLIGHTS.run(key, k -> {
+            long start = System.nanoTime();
+            BufferedImage mosaic = compositeImage(rasteredImgParams, Router.Route.EMPTY);
+            double wdpp = (raster.lrLon - raster.ulLon) / mosaic.getWidth();
+            double hdpp = (raster.ulLat - raster.lrLat) / mosaic.getHeight();
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(mosaic, 0, 0, width, height,
+                    (int) Math.round((ullon - raster.ulLon) / wdpp),
+                    (int) Math.round((raster.ulLat - ullat) / hdpp),
+                    (int) Math.round((lrlon - raster.ulLon) / wdpp),
+                    (int) Math.round((raster.ulLat - lrlat) / hdpp), null);
+            g.dispose();
+            byte[] encoded = encoder.encode(img, format);
+            RENDER_TIME.record(System.nanoTime() - start);
+            return encoded;
+        });
+    }
+
+    /**
+     * Sends the tile named by the request's depth, x and y path parameters, unless the
+     * client's copy, named by its If-None-Match header, is still current. Tiles are sent from
+     * the tile archive if there is one, and otherwise from their files with
+     * FileChannel.transferTo; either way without a heap buffer of their own.
+     */
+    private static Object serveTile(spark.Request req, spark.Response res) throws IOException {
+        int depth = tileParam(req.params(":depth"), rasterer.maxDepth() + 1);
+        int n = 1 << Math.max(depth, 0);
+        int x = tileParam(req.params(":x"), n);
+        int y = tileParam(req.params(":y").replaceFirst("\\.png$", ""), n);
+        File file = depth > Rasterer.MAX_DEPTH && x >= 0 && y >= 0
+                ? renderer.file(depth, x, y)
+                : new File(IMG_ROOT + Rasterer.Raster.tileName(depth, x, y));
+        ByteBuffer packed = depth < 0 || x < 0 || y < 0 || tileArchive == null
+                ? null : tileArchive.get(depth, x, y);
+        if (depth < 0 || x < 0 || y < 0 || packed == null && !file.isFile()) {
+            halt(NOT_FOUND_RESPONSE, "No such tile.");
+        }
+        String etag = packed != null
+                ? "\"" + Long.toHexString(tileArchive.crc(depth, x, y)) + "\""
+                : "\"" + Long.toHexString(file.lastModified()) + "-"
+                + Long.toHexString(file.length()) + "\"";
+        res.header("ETag", etag);
+        res.header("Cache-Control", "public, max-age=" + TILE_MAX_AGE_SECONDS);
+        if (notModified(req.headers("If-None-Match"), etag)) {
+            TILES_NOT_MODIFIED.increment();
+            res.status(NOT_MODIFIED_RESPONSE);
+            return "";
+        }
+        TILES_SENT.increment();
+        res.type("image/png");
+        WritableByteChannel out = Channels.newChannel(res.raw().getOutputStream());
+        if (packed != null) {
+            res.raw().setContentLength(packed.remaining());
+            while (packed.hasRemaining()) {
+                out.write(packed);
+            }
+            return "";
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            res.raw().setContentLengthLong(size);
+            for (long sent = 0; sent < size; ) {
+                sent += in.transferTo(sent, size - sent, out);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Returns true if an If-None-Match header names a resource's entity tag: the header is
+     * "*" or a comma-separated list of tags, compared weakly, so that W/"x" matches "x".
+     * @param ifNoneMatch The header, or null if the request has none.
+     * @param etag The entity tag of the resource, quotes included.
+     */
+    static boolean notModified(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the vector tile of the roads in a box, setting the response headers for it. */
+    private static byte[] roads(spark.Response res, double ullon, double ullat, double lrlon,
+                                double lrlat) {
+        res.type("application/octet-stream");
+        res.header("Access-Control-Expose-Headers", "X-Road-Classes");
+        res.header("X-Road-Classes", String.join(",", GraphDB.WAY_CLASSES));
+        byte[] tile = RoadTiles.encode(graph, ullon, ullat, lrlon, lrlat);
+        ROAD_TILE_BYTES.add(tile.length);
+        return tile;
+    }
+
+    /** Parses a tile path parameter, returning -1 unless it is a number in [0, limit). */
+    private static int tileParam(String value, int limit) {
+        try {
+            int i = Integer.parseInt(value);
+            return i < limit ? i : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Parses the preview parameter of /raster.png, returning 0 unless it is a positive number. */
+    private static int previewLevels(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the decoded tile images for a grid of file names. Tiles missing from the tile
+     * cache are decoded in parallel on the tileDecoder pool and then cached, once even if
+     * several rasters need them at the same time. A tile that cannot be read, or that was not
+     * decoded yet when the thread was interrupted, is null.
+     */
+    private static BufferedImage[][] getTiles(String[][] renderGrid) {
+        BufferedImage[][] tiles = new BufferedImage[renderGrid.length][];
+        List<Future<BufferedImage>> pending = new ArrayList<>();
+        List<int[]> pendingCells = new ArrayList<>();
+        for (int r = 0; r < renderGrid.length; r++) {
+            tiles[r] = new BufferedImage[renderGrid[r].length];
+            for (int c = 0; c < renderGrid[r].length; c++) {
+                tiles[r][c] = tileCache.get(renderGrid[r][c]);
+                if (tiles[r][c] == null) {
+                    String name = renderGrid[r][c];
+                    pending.add(tileDecoder.submit(
+                            () -> TILE_FLIGHTS.run(name, MapServer::loadTile)));
+                    pendingCells.add(new int[]{r, c});
+                }
+            }
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            int[] cell = pendingCells.get(i);
+            try {
+                tiles[cell[0]][cell[1]] = pending.get(i).get();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                /* Stop waiting and leave the rest missing. Decodes already running are left
+                 * to finish, as other rasters may be sharing them through TILE_FLIGHTS. */
+                Thread.currentThread().interrupt();
+                for (int j = i; j < pending.size(); j++) {
+                    pending.get(j).cancel(false);
+                }
+                break;
+            }
         }
+        return tiles;
+    }
 
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+    /**
+     * Reads a tile, from the tile archive if there is one and otherwise from its file, into an
+     * integer RGB image whose pixels can be copied straight into a raster, and caches it.
+     * Tiles deeper than the pyramid come from the renderer instead.
+     */
+    private static BufferedImage loadTile(String name) {
+        int[] dxy = TileArchive.parseName(name);
+        ByteBuffer packed = tileArchive == null ? null : tileArchive.get(name);
+        BufferedImage tile = dxy != null && dxy[0] > Rasterer.MAX_DEPTH
+                ? renderer.tile(dxy[0], dxy[1], dxy[2])
+                : packed != null ? getImage(packed) : getImage(IMG_ROOT + name);
+        if (tile == null) {
+            return null;
+        }
+        if (tile.getType() != BufferedImage.TYPE_INT_RGB) {
+            BufferedImage rgb = new BufferedImage(tile.getWidth(), tile.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            Graphics g = rgb.getGraphics();
+            g.drawImage(tile, 0, 0, null);
+            g.dispose();
+            tile = rgb;
+        }
+        tileCache.put(name, tile);
+        return tile;
+    }
 
+    /**
+     * Loads every tile of depths 0 through maxDepth into the tile cache, in parallel on
+     * low-priority background threads, and sets ready once done. With a negative maxDepth,
+     * the server is ready at once.
+     */
+    private static void warmUp(int maxDepth) {
+        if (maxDepth < 0) {
+            ready = true;
+            return;
+        }
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Integer.getInteger("bearmaps.tileDecodeThreads", DEFAULT_TILE_DECODE_THREADS),
+                daemonThreads("tile-warmup", Thread.MIN_PRIORITY));
+        List<CompletableFuture<Void>> loads = new ArrayList<>();
+        for (int d = 0; d <= maxDepth; d++) {
+            for (int y = 0; y < 1 << d; y++) {
+                for (int x = 0; x < 1 << d; x++) {
+                    String name = Rasterer.Raster.tileName(d, x, y);
+                    loads.add(CompletableFuture.runAsync(() -> {
+                        if (!tileCache.contains(name)) {
+                            TILE_FLIGHTS.run(name, MapServer::loadTile);
+                        }
+                    }, pool));
+                }
+            }
+        }
+        Metrics.gauge("warmup.tiles", loads::size);
+        CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            long millis = (System.nanoTime() - start) / 1000000;
+            Metrics.gauge("warmup.millis", () -> millis);
+            ready = true;
+            pool.shutdown();
+        });
+    }
+
+    /** Tells the prefetcher, if there is one, that a session was shown a raster. */
+    private static void prefetch(String session, Rasterer.Raster raster) {
+        if (prefetcher != null) {
+            prefetcher.viewed(session, raster);
+        }
+    }
+
+    /** Maps the tile archive at path, or returns null if there is no usable archive there. */
+    private static TileArchive openTileArchive(String path) {
+        if (!new File(path).isFile()) {
+            return null;
+        }
         try {
-            ImageIO.write(img, "png", os);
+            return TileArchive.open(Paths.get(path));
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
+    }
+
+    /** Returns a factory of named daemon threads with the given priority. */
+    private static ThreadFactory daemonThreads(String name, int priority) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread t = new Thread(runnable, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        };
+    }
+
+    /** Returns the memory used by the pixels of an image, in bytes. */
+    private static long imageBytes(BufferedImage img) {
+        DataBuffer data = img.getRaster().getDataBuffer();
+        return (long) data.getSize() * data.getNumBanks()
+                * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+    }
 
+    /** Decodes an image from bytes, e.g. a tile in the tile archive. */
+    private static BufferedImage getImage(ByteBuffer bytes) {
+        byte[] b = new byte[bytes.remaining()];
+        bytes.get(b);
+        try {
+            return ImageIO.read(new ByteArrayInputStream(b));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     private static BufferedImage getImage(String imgPath) {
@@ -271,10 +1069,30 @@ public class MapServer {
     }
 
     /**
-     * Clear the current found route, if it exists.
+     * Clear the current found route of a client session, if it exists.
      */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
+    public static void clearRoute(String session) {
+        routes.remove(session);
+    }
+
+    /**
+     * Returns the caller's session id, giving it a new session cookie if it has none. Only
+     * requests that record something for the session call this, so that the requests a page
+     * sends in parallel on its first load do not each start a session of their own.
+     */
+    private static String session(spark.Request req, spark.Response res) {
+        String id = existingSession(req);
+        if (id == null) {
+            id = SessionRoutes.newSessionId();
+            res.cookie("/", SESSION_COOKIE, id, -1, false, true);
+        }
+        return id;
+    }
+
+    /** Returns the caller's session id, or null if it has no session cookie yet. */
+    private static String existingSession(spark.Request req) {
+        String id = req.cookie(SESSION_COOKIE);
+        return SessionRoutes.isSessionId(id) ? id : null;
     }
 
     /**
@@ -326,11 +1144,11 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+    private static String getDirectionsText(Router.Route route) {
+        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route.nodes());
         if (directions == null || directions.isEmpty()) {
             return "";
         }
@@ -0,0 +1,150 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A tiny process-wide registry of counters, gauges and latency histograms. Recording is a
+ * single LongAdder increment so it is cheap enough to leave on for every request. The whole
+ * registry can be read in-process through snapshot(), which is also what MapServer serves
+ * on the /metrics endpoint.
+ */
+public class Metrics {
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<Object>> GAUGES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter registered under name, creating it on first use.
+     * @param name The metric name, e.g. "router.queries".
+     * @return The shared counter.
+     */
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, k -> new Counter());
+    }
+
+    /**
+     * Returns the latency histogram registered under name, creating it on first use.
+     * @param name The metric name, e.g. "router.total_time".
+     * @return The shared histogram.
+     */
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge whose value is read from the supplier every time a snapshot is taken.
+     * A later registration under the same name replaces the earlier one.
+     * @param name The metric name.
+     * @param value Supplier of the current value.
+     */
+    public static void gauge(String name, Supplier<Object> value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Takes a point-in-time copy of every registered metric, sorted by name.
+     * @return A map of metric name to a Number (counters, gauges) or a Map (histograms).
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> all = new TreeMap<>();
+        for (Map.Entry<String, Counter> e : COUNTERS.entrySet()) {
+            all.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Supplier<Object>> e : GAUGES.entrySet()) {
+            all.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> e : HISTOGRAMS.entrySet()) {
+            all.put(e.getKey(), e.getValue().snapshot());
+        }
+        return all;
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * A latency histogram with power-of-two microsecond buckets: bucket i counts samples in
+     * [2^i, 2^(i+1)) microseconds, so percentiles are accurate to within a factor of two.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        /**
+         * Records one sample.
+         * @param nanos The sample in nanoseconds.
+         */
+        public void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            int b = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(b);
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * Returns the upper bound, in milliseconds, of the bucket holding the q-quantile.
+         * @param q A quantile in [0, 1].
+         */
+        public double quantileMillis(double q) {
+            long total = 0;
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+                total += copy[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += copy[i];
+                if (seen >= rank) {
+                    return (1L << (i + 1)) / 1000.0;
+                }
+            }
+            return (1L << BUCKETS) / 1000.0;
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> s = new LinkedHashMap<>();
+            long n = count();
+            s.put("count", n);
+            s.put("mean_ms", n == 0 ? 0 : sumNanos.sum() / 1e6 / n);
+            s.put("p50_ms", quantileMillis(0.50));
+            s.put("p90_ms", quantileMillis(0.90));
+            s.put("p99_ms", quantileMillis(0.99));
+            return s;
+        }
+    }
+}
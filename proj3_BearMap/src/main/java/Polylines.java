@@ -0,0 +1,80 @@
+import java.util.Arrays;
+
+/**
+ * Simplifies polylines with the Douglas-Peucker algorithm: of the points between two kept
+ * points, the one farthest from the line through them is kept too if it is farther than the
+ * tolerance, and the two halves are simplified in turn; otherwise all of them are dropped.
+ */
+public class Polylines {
+    private Polylines() {
+    }
+
+    /**
+     * Returns the indices, in order, of the points of a polyline that keep it within a
+     * tolerance of the original. The first and last points are always kept.
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points, in the same units as x.
+     * @param tolerance How far, in those units, the simplified line may stray.
+     */
+    static int[] simplify(double[] x, double[] y, double tolerance) {
+        int n = x.length;
+        if (n <= 2) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        /* Ranges still to simplify, as pairs of kept end points, instead of recursion. */
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        double tolerance2 = tolerance * tolerance;
+        while (top > 0) {
+            int last = stack[--top], first = stack[--top];
+            int farthest = -1;
+            double max = tolerance2;
+            for (int i = first + 1; i < last; i++) {
+                double d2 = distance2(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (d2 > max) {
+                    max = d2;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0) {
+                continue;
+            }
+            keep[farthest] = true;
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = first;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = last;
+        }
+        int[] kept = new int[n];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                kept[size++] = i;
+            }
+        }
+        return Arrays.copyOf(kept, size);
+    }
+
+    /** Returns the squared distance from point p to the segment from a to b. */
+    private static double distance2(double px, double py, double ax, double ay,
+                                    double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / len2;
+        t = Math.max(0, Math.min(1, t));
+        double cx = ax + t * dx - px, cy = ay + t * dy - py;
+        return cx * cx + cy * cy;
+    }
+}
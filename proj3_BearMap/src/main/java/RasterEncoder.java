@@ -0,0 +1,198 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes raster images in one of several formats, which trade image fidelity for encoding
+ * time and size: PNG as ImageIO writes it by default, PNG with a fast deflate level, JPEG of
+ * a given quality, and PNG with a palette of at most 256 colours.
+ */
+public class RasterEncoder {
+    /** The formats a raster can be encoded in. */
+    enum Format {
+        PNG("png", "image/png"),
+        PNG_FAST("png_fast", "image/png"),
+        JPEG("jpeg", "image/jpeg"),
+        INDEXED("indexed", "image/png");
+
+        /** The name of the format in requests and cache keys. */
+        final String key;
+        final String contentType;
+
+        Format(String key, String contentType) {
+            this.key = key;
+            this.contentType = contentType;
+        }
+
+        /** Returns the format with the given name, or null if there is none. */
+        static Format of(String key) {
+            for (Format f : values()) {
+                if (f.key.equals(key)) {
+                    return f;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Colours are counted with this many bits per channel when choosing a palette. */
+    private static final int BITS = 5;
+    private static final int PALETTE_SIZE = 256;
+
+    private final int fastPngLevel;
+    private final float jpegQuality;
+
+    /**
+     * @param fastPngLevel The deflate level, 0 to 9, of Format.PNG_FAST.
+     * @param jpegQuality The quality, 0 to 1, of Format.JPEG.
+     */
+    RasterEncoder(int fastPngLevel, float jpegQuality) {
+        this.fastPngLevel = fastPngLevel;
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Picks the format of a response: the one named by the format query parameter if it names
+     * one, JPEG if the Accept header asks for JPEG but not PNG, and otherwise the default.
+     */
+    static Format choose(String format, String accept, Format defaultFormat) {
+        Format f = format == null ? null : Format.of(format);
+        if (f != null) {
+            return f;
+        }
+        if (accept != null && accept.contains("image/jpeg") && !accept.contains("image/png")) {
+            return Format.JPEG;
+        }
+        return defaultFormat;
+    }
+
+    /**
+     * Encodes an integer RGB image in a format.
+     * @throws UncheckedIOException If the image writer fails, so that no partial image is
+     * served or cached.
+     */
+    byte[] encode(BufferedImage img, Format format) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            switch (format) {
+                case PNG_FAST:
+                    write(img, "png", 1 - fastPngLevel / 9f, os);
+                    break;
+                case JPEG:
+                    write(img, "jpeg", jpegQuality, os);
+                    break;
+                case INDEXED:
+                    ImageIO.write(quantize(img), "png", os);
+                    break;
+                default:
+                    ImageIO.write(img, "png", os);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return os.toByteArray();
+    }
+
+    /** Writes an image with an explicit compression quality, if the writer takes one. */
+    private static void write(BufferedImage img, String type, float quality,
+                              ByteArrayOutputStream os) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(type).next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(os)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Returns a palette image of an integer RGB image. The palette is made of the most common
+     * colours, counted at BITS bits per channel (the popularity algorithm), and every pixel
+     * takes the palette colour nearest to its own.
+     */
+    static BufferedImage quantize(BufferedImage img) {
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int bins = 1 << (3 * BITS);
+        long[] count = new long[bins], red = new long[bins], green = new long[bins],
+                blue = new long[bins];
+        for (int p : pixels) {
+            int b = bin(p);
+            count[b] += 1;
+            red[b] += (p >> 16) & 0xff;
+            green[b] += (p >> 8) & 0xff;
+            blue[b] += p & 0xff;
+        }
+
+        /* The palette is the mean colour of each of the most common bins. */
+        Integer[] order = new Integer[bins];
+        for (int b = 0; b < bins; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (x, y) -> Long.compare(count[y], count[x]));
+        int size = 0;
+        while (size < Math.min(PALETTE_SIZE, bins) && count[order[size]] > 0) {
+            size += 1;
+        }
+        size = Math.max(size, 1);
+        byte[] r = new byte[size], g = new byte[size], bl = new byte[size];
+        for (int i = 0; i < size; i++) {
+            long n = Math.max(count[order[i]], 1);
+            r[i] = (byte) (red[order[i]] / n);
+            g[i] = (byte) (green[order[i]] / n);
+            bl[i] = (byte) (blue[order[i]] / n);
+        }
+
+        /* Every bin in use is mapped to its nearest palette colour once, not every pixel. */
+        byte[] nearest = new byte[bins];
+        for (int b = 0; b < bins; b++) {
+            if (count[b] == 0) {
+                continue;
+            }
+            long n = count[b];
+            int cr = (int) (red[b] / n), cg = (int) (green[b] / n), cb = (int) (blue[b] / n);
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                int dr = cr - (r[i] & 0xff), dg = cg - (g[i] & 0xff), db = cb - (bl[i] & 0xff);
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            nearest[b] = (byte) best;
+        }
+
+        BufferedImage indexed = new BufferedImage(img.getWidth(), img.getHeight(),
+                BufferedImage.TYPE_BYTE_INDEXED,
+                new IndexColorModel(8, size, r, g, bl));
+        byte[] out = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            out[i] = nearest[bin(pixels[i])];
+        }
+        return indexed;
+    }
+
+    /** Returns the colour bin of an RGB pixel. */
+    private static int bin(int p) {
+        int shift = 8 - BITS;
+        return (((p >> 16) & 0xff) >> shift) << (2 * BITS)
+                | (((p >> 8) & 0xff) >> shift) << BITS
+                | (p & 0xff) >> shift;
+    }
+}
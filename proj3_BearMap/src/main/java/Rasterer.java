@@ -8,13 +8,27 @@ import java.util.Map;
  * a query result. The getMapRaster method must return a Map containing all
  * seven of the required fields, otherwise the front end code will probably
  * not draw the output correctly.
+ *
+ * A Rasterer keeps no per-query state, so one instance can be shared by every request thread.
  */
 public class Rasterer {
+    /** The deepest level of the pre-rendered tile pyramid. */
+    static final int MAX_DEPTH = 7;
+
+    /** The deepest level rasters are drawn at; past MAX_DEPTH, tiles are drawn on demand. */
+    private final int maxDepth;
 
-    double xstart, xend, ystart, yend, blockx, blocky;
-    int depth;
     public Rasterer() {
-        // YOUR CODE HERE
+        this(MAX_DEPTH);
+    }
+
+    Rasterer(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /** Returns the deepest level rasters are drawn at. */
+    int maxDepth() {
+        return maxDepth;
     }
 
     /**
@@ -46,114 +60,122 @@ public class Rasterer {
      *                    forget to set this to true on success! <br>
      */
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
-        System.out.println(params);
-        params.get("w");
-        Map<String, Object> results = new HashMap<>();
-        //System.out.println("Since you haven't implemented getMapRaster, nothing is displayed in "
-        //                   + "your browser.");
-        results.clear();
-        //initialization;
-
-        String[][] renderGrid = getGrid(params);
-
-        double rasterUlLon = this.xstart * blockx + MapServer.ROOT_ULLON;
-        double rasterUlLat = MapServer.ROOT_ULLAT - this.ystart * blocky;
-        double rasterLrLon = MapServer.ROOT_LRLON - (Math.pow(2, this.depth)
-                - 1 - this.xend) * blockx;
-        double rasterLrLat = MapServer.ROOT_LRLAT + (Math.pow(2, this.depth)
-                - 1 - this.yend) * blocky;
-        //double width = params.get("w"), height = params.get("h");
-
-        double ullon = params.get("ullon");
-        double ullat = params.get("ullat");
-        double lrlon = params.get("lrlon");
-        double lrlat = params.get("lrlat");
-
-        Boolean querySuccess;
-        if (ullon < MapServer.ROOT_ULLON || ullon > lrlon || ullon > MapServer.ROOT_LRLON
-                || ullat > MapServer.ROOT_ULLAT || ullat < MapServer.ROOT_LRLAT || ullat < lrlat) {
-            querySuccess = false;
-        } else {
-            querySuccess = true;
-        }
-
-        results.put("render_grid", renderGrid);
-        results.put("raster_ul_lon", rasterUlLon);
-        results.put("raster_ul_lat", rasterUlLat);
-        results.put("raster_lr_lon", rasterLrLon);
-        results.put("raster_lr_lat", rasterLrLat);
-        results.put("depth", depth);
-        results.put("query_success", querySuccess);
-        return results;
+        return raster(params.get("ullon"), params.get("ullat"), params.get("lrlon"),
+                params.get("lrlat"), params.get("w")).toMap();
     }
 
-    private String[][] getGrid(Map<String, Double> params) {
-        double ullon = params.get("ullon");
-        double ullat = params.get("ullat");
-        double lrlon = params.get("lrlon");
-        double lrlat = params.get("lrlat");
-        double width = params.get("w"), height = params.get("h");
-        double lonDPP = (lrlon - ullon) / width;
+    /**
+     * Computes the tile range for a query box directly, in constant time.
+     * @param ullon Upper left longitude of the query box.
+     * @param ullat Upper left latitude of the query box.
+     * @param lrlon Lower right longitude of the query box.
+     * @param lrlat Lower right latitude of the query box.
+     * @param width Width of the user viewport in pixels.
+     * @return The tiles to draw and the box they cover.
+     */
+    public Raster raster(double ullon, double ullat, double lrlon, double lrlat, double width) {
+        boolean querySuccess = !(ullon < MapServer.ROOT_ULLON || ullon > lrlon
+                || ullon > MapServer.ROOT_LRLON || ullat > MapServer.ROOT_ULLAT
+                || ullat < MapServer.ROOT_LRLAT || ullat < lrlat);
 
+        double lonDPP = (lrlon - ullon) / width;
         double d0 = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / MapServer.TILE_SIZE;
-        double depth0 = Math.log(d0 / lonDPP) / Math.log(2);
-        this.depth = (int) Math.ceil(depth0);
-        if (this.depth > 7) {
-            this.depth = 7;
-        }
+        int depth = (int) Math.ceil(Math.log(d0 / lonDPP) / Math.log(2));
+        depth = Math.max(0, Math.min(maxDepth, depth));
 
-        double blockY = Math.abs((MapServer.ROOT_LRLAT - MapServer.ROOT_ULLAT))
-                / Math.pow(2.0, this.depth);
-        double blockX = Math.abs((MapServer.ROOT_LRLON - MapServer.ROOT_ULLON))
-                / Math.pow(2.0, this.depth);
-        this.blocky = blockY;
-        this.blockx = blockX;
+        return cover(depth, ullon, ullat, lrlon, lrlat, querySuccess);
+    }
 
-        int xStart = 0; // = ul_lon / block;
-        int xEnd = 0; // = (ul_lon + width) / block;
-        int yStart = 0; // = ul_lat / block;
-        int yEnd = 0; // = (lr_lat + height) / block;
+    /**
+     * Returns the tiles of a depth that cover a box, clamped to the root tile.
+     * @param querySuccess Whether the box is a valid query; if not, the tile range is only
+     *                     made non-empty.
+     */
+    static Raster cover(int depth, double ullon, double ullat, double lrlon, double lrlat,
+                        boolean querySuccess) {
+        int n = 1 << depth;
+        double blockX = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / n;
+        double blockY = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / n;
+        int xStart = tile((ullon - MapServer.ROOT_ULLON) / blockX, n);
+        int xEnd = tile((lrlon - MapServer.ROOT_ULLON) / blockX, n);
+        /* Rows are counted from the top, but measured from the bottom so that a latitude on
+         * the border between two rows belongs to the upper one. */
+        int yStart = n - 1 - tile((ullat - MapServer.ROOT_LRLAT) / blockY, n);
+        int yEnd = n - 1 - tile((lrlat - MapServer.ROOT_LRLAT) / blockY, n);
+        if (!querySuccess) {
+            xEnd = Math.max(xStart, xEnd);
+            yEnd = Math.max(yStart, yEnd);
+        }
+        return new Raster(depth, xStart, xEnd, yStart, yEnd, querySuccess);
+    }
 
+    /** Returns the index of the tile holding position p (in tiles), clamped to [0, n). */
+    private static int tile(double p, int n) {
+        return (int) Math.max(0, Math.min(n - 1, Math.floor(p)));
+    }
 
-        for (int i = 0; i < Math.pow(2, this.depth); i++) {
-            if (ullon >= (MapServer.ROOT_ULLON + i * blockX)
-                    && ullon < ((i + 1) * blockX + MapServer.ROOT_ULLON)) {
-                xStart = i;
-            }
-            if (ullat >= (MapServer.ROOT_LRLAT + i * blockY)
-                    && ullat < ((i + 1) * blockY + MapServer.ROOT_LRLAT)) {
-                yStart = (int) Math.pow(2, this.depth) - 1 - i;
-            }
-            if (lrlat >= (MapServer.ROOT_LRLAT + i * blockY)
-                    && (lrlat < (i + 1) * blockY + MapServer.ROOT_LRLAT)) {
-                yEnd = (int) Math.pow(2, this.depth) - 1 - i;
-            }
-            if (lrlon >= (MapServer.ROOT_ULLON + i * blockX)
-                    && (lrlon < (i + 1) * blockX + MapServer.ROOT_ULLON)) {
-                xEnd = i;
-            }
+    /**
+     * The result of rastering a query: the inclusive tile ranges xStart..xEnd (left to right)
+     * and yStart..yEnd (top to bottom) at a depth, and the box the tiles cover.
+     */
+    public static final class Raster {
+        final int depth, xStart, xEnd, yStart, yEnd;
+        final double ulLon, ulLat, lrLon, lrLat;
+        final boolean querySuccess;
+
+        Raster(int depth, int xStart, int xEnd, int yStart, int yEnd, boolean querySuccess) {
+            this.depth = depth;
+            this.xStart = xStart;
+            this.xEnd = xEnd;
+            this.yStart = yStart;
+            this.yEnd = yEnd;
+            this.querySuccess = querySuccess;
+            int n = 1 << depth;
+            double blockX = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / n;
+            double blockY = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / n;
+            ulLon = MapServer.ROOT_ULLON + xStart * blockX;
+            ulLat = MapServer.ROOT_ULLAT - yStart * blockY;
+            lrLon = MapServer.ROOT_LRLON - (n - 1 - xEnd) * blockX;
+            lrLat = MapServer.ROOT_LRLAT + (n - 1 - yEnd) * blockY;
         }
 
-        this.xstart = xStart;
-        this.xend = xEnd;
-        this.yend = yEnd;
-        this.ystart = yStart;
+        /** Number of tile columns. */
+        int columns() {
+            return xEnd - xStart + 1;
+        }
+
+        /** Number of tile rows. */
+        int rows() {
+            return yEnd - yStart + 1;
+        }
 
-        String[][] rendergrid = new String[(int) (yend - ystart) + 1][(int) (xEnd - xStart) + 1];
+        /** Returns the file name of the tile at column x and row y of the tile pyramid. */
+        static String tileName(int depth, int x, int y) {
+            return "d" + depth + "_x" + x + "_y" + y + ".png";
+        }
 
-        for (int i = 0; i < xend - xStart + 1; i++) {
-            for (int j = 0; j < yend - ystart + 1; j++) {
-                rendergrid[j][i] = "d" + this.depth + "_x"
-                        + (int) (i + xStart) + "_y" + (int) (j + yStart) + ".png";
+        /** Returns the file names of the tiles, row by row from the top. */
+        String[][] renderGrid() {
+            String[][] grid = new String[rows()][columns()];
+            for (int r = 0; r < rows(); r++) {
+                for (int c = 0; c < columns(); c++) {
+                    grid[r][c] = tileName(depth, xStart + c, yStart + r);
+                }
             }
+            return grid;
         }
 
-        return rendergrid;
+        /** Returns a new, mutable map of the results, as specified by getMapRaster. */
+        Map<String, Object> toMap() {
+            Map<String, Object> results = new HashMap<>();
+            results.put("render_grid", renderGrid());
+            results.put("raster_ul_lon", ulLon);
+            results.put("raster_ul_lat", ulLat);
+            results.put("raster_lr_lon", lrLon);
+            results.put("raster_lr_lat", lrLat);
+            results.put("depth", depth);
+            results.put("query_success", querySuccess);
+            return results;
+        }
     }
-
-//    private Boolean isQureySuccess() {
-//        if ()
-//        return true;
-//    }
-
 }
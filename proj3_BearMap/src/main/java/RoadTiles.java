@@ -0,0 +1,165 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes the roads in a box as a compact binary "vector tile" that clients can draw
+ * themselves. The segments near the box, found with the graph's SegmentRTree, are grouped by
+ * way class and joined into polylines where they meet. Coordinates are quantized to an
+ * EXTENT by EXTENT grid over the box, with y growing downwards like pixels, and every point
+ * is stored as its difference from the point before, which is small for roads.
+ *
+ * All numbers are unsigned LEB128 varints; signed ones are zigzag encoded first. A tile is
+ * the extent, then for each way class with roads in the box: the class (an index into
+ * GraphDB.WAY_CLASSES), the number of polylines, and for each polyline the number of points
+ * followed by the zigzagged x and y difference of each point. Differences run on across
+ * polylines and classes, from (0, 0) at the start of the tile. Points of roads that cross
+ * the edge of the box may lie outside [0, EXTENT].
+ */
+public class RoadTiles {
+    /** The size of the grid coordinates are quantized to. */
+    static final int EXTENT = 4096;
+    /**
+     * The deepest tile level roads are encoded at. A tile this deep is a few meters across, and
+     * a grid any finer would put the far ends of long roads crossing a box, and the
+     * differences between points, out of the range of an int; at this depth points up to half
+     * a degree away from the box still fit.
+     */
+    static final int MAX_DEPTH = 15;
+
+    private RoadTiles() {
+    }
+
+    /**
+     * Returns true if a box is at least as wide and as tall as a tile at MAX_DEPTH, so that
+     * its roads can be encoded.
+     */
+    static boolean encodable(double ullon, double ullat, double lrlon, double lrlat) {
+        int n = 1 << MAX_DEPTH;
+        return lrlon - ullon >= (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / n
+                && ullat - lrlat >= (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / n;
+    }
+
+    /** Encodes the roads in a box, which must be encodable. */
+    static byte[] encode(GraphDB g, double ullon, double ullat, double lrlon, double lrlat) {
+        SegmentRTree segments = g.segments;
+        List<List<Integer>> byClass = new ArrayList<>();
+        for (int c = 0; c < GraphDB.WAY_CLASSES.length; c++) {
+            byClass.add(new ArrayList<>());
+        }
+        segments.search(ullon, lrlat, lrlon, ullat, s -> byClass.get(
+                Math.max(0, g.wayClass(segments.segFrom[s], segments.segTo[s]))).add(s));
+
+        double scaleX = EXTENT / (lrlon - ullon), scaleY = EXTENT / (ullat - lrlat);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, EXTENT);
+        int cx = 0, cy = 0;
+        for (int c = 0; c < byClass.size(); c++) {
+            if (byClass.get(c).isEmpty()) {
+                continue;
+            }
+            /* Quantize each polyline, dropping points that fall on the one before. */
+            List<int[]> lines = new ArrayList<>();
+            for (Deque<Integer> chain : chains(segments, byClass.get(c))) {
+                int[] xy = new int[2 * chain.size()];
+                int n = 0;
+                for (int v : chain) {
+                    int x = (int) Math.round((g.nodeLon[v] - ullon) * scaleX);
+                    int y = (int) Math.round((ullat - g.nodeLat[v]) * scaleY);
+                    if (n == 0 || x != xy[2 * n - 2] || y != xy[2 * n - 1]) {
+                        xy[2 * n] = x;
+                        xy[2 * n + 1] = y;
+                        n += 1;
+                    }
+                }
+                if (n >= 2) {
+                    lines.add(Arrays.copyOf(xy, 2 * n));
+                }
+            }
+            if (lines.isEmpty()) {
+                continue;
+            }
+            writeVarint(out, c);
+            writeVarint(out, lines.size());
+            for (int[] xy : lines) {
+                writeVarint(out, xy.length / 2);
+                for (int i = 0; i < xy.length; i += 2) {
+                    writeVarint(out, zigzag(xy[i] - cx));
+                    writeVarint(out, zigzag(xy[i + 1] - cy));
+                    cx = xy[i];
+                    cy = xy[i + 1];
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Joins segments into chains of dense vertices, each segment used once: every chain is
+     * grown from a segment at both ends for as long as another unused segment meets it.
+     */
+    private static List<Deque<Integer>> chains(SegmentRTree segments, List<Integer> ids) {
+        Map<Integer, List<Integer>> at = new HashMap<>();
+        for (int s : ids) {
+            at.computeIfAbsent(segments.segFrom[s], v -> new ArrayList<>()).add(s);
+            at.computeIfAbsent(segments.segTo[s], v -> new ArrayList<>()).add(s);
+        }
+        Set<Integer> used = new HashSet<>();
+        List<Deque<Integer>> chains = new ArrayList<>();
+        for (int s : ids) {
+            if (!used.add(s)) {
+                continue;
+            }
+            Deque<Integer> chain = new ArrayDeque<>();
+            chain.add(segments.segFrom[s]);
+            chain.add(segments.segTo[s]);
+            for (boolean forward : new boolean[]{true, false}) {
+                int end = forward ? chain.peekLast() : chain.peekFirst();
+                for (int next = unused(at.get(end), used); next >= 0;
+                     next = unused(at.get(end), used)) {
+                    used.add(next);
+                    end = segments.segFrom[next] == end ? segments.segTo[next]
+                            : segments.segFrom[next];
+                    if (forward) {
+                        chain.addLast(end);
+                    } else {
+                        chain.addFirst(end);
+                    }
+                }
+            }
+            chains.add(chain);
+        }
+        return chains;
+    }
+
+    /** Returns a segment of a list that is not used yet, or -1. */
+    private static int unused(List<Integer> list, Set<Integer> used) {
+        for (int s : list) {
+            if (!used.contains(s)) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /** Maps signed to unsigned numbers so that small magnitudes stay small: 0, -1, 1, -2... */
+    static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /** Writes a non-negative number seven bits at a time, low bits first. */
+    static void writeVarint(ByteArrayOutputStream out, int n) {
+        while ((n & ~0x7f) != 0) {
+            out.write((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+}
@@ -1,23 +1,13 @@
-
-import java.util.LinkedList;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import java.util.PriorityQueue;
-
-import java.util.Set;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import java.util.Map;
-
-import java.util.HashSet;
-import java.util.HashMap;
-
-import java.util.Comparator;
-
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /**
@@ -48,79 +38,268 @@ public class Router {
 
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        // FIXME
-        Long startID = g.closest(stlon, stlat);
-        GraphDB.Vertice sNode = g.vertice.get(startID);
-        Long endID = g.closest(destlon, destlat);
-        GraphDB.Vertice eNode = g.vertice.get(endID);
-        LinkedList<Long> best = new LinkedList<>();
-        GraphDB.Vertice node = eNode;
-        Set<Long> marked = new HashSet<>();
-        Map<Long, Double> disTo = new HashMap<>(); //use to store distance the node has passes.
-
-        PriorityQueue<GraphDB.Vertice> f = new PriorityQueue<>(new Comparator<GraphDB.Vertice>() {
-            @Override
-            public int compare(GraphDB.Vertice o1, GraphDB.Vertice o2) {
-                double dis1, dis2;
-                dis1 = disTo.get(o1.id) + g.distance(o1.id, endID);
-                dis2 = disTo.get(o2.id) + g.distance(o2.id, endID);
-                if (dis1 > dis2) {
-                    return 1;
-                } else if (dis1 < dis2) {
-                    return -1;
-                } else {
-                    return 0;
-                }
+        return shortestPath(g, stlon, stlat, destlon, destlat, new SearchStats());
+    }
+
+    /**
+     * Same as shortestPath above, but also records how much work the search did.
+     * The counters are filled into stats and added to the process-wide Metrics.
+     * @param stats Receives the per-query search effort.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, SearchStats stats) {
+        long queryStart = System.nanoTime();
+        try {
+            return search(g, stlon, stlat, destlon, destlat, stats);
+        } finally {
+            stats.totalNanos = System.nanoTime() - queryStart;
+            stats.publish();
+        }
+    }
+
+    private static List<Long> search(GraphDB g, double stlon, double stlat,
+                                     double destlon, double destlat, SearchStats stats) {
+        long closestStart = System.nanoTime();
+        long startID = g.closest(stlon, stlat);
+        long endID = g.closest(destlon, destlat);
+        stats.closestNanos = System.nanoTime() - closestStart;
+        /* Nothing to search for if the two ends are in different components. */
+        if (!g.connected(startID, endID)) {
+            return new ArrayList<>();
+        }
+        int[] sources = {g.vertice.get(startID).index};
+        int[] targets = {g.vertice.get(endID).index};
+        ContractedGraph.IntList path = search(g, sources, new double[1], targets,
+                new double[1], stats);
+        return toIds(g, path);
+    }
+
+    /**
+     * Finds the shortest route between the road points closest to a start and destination,
+     * which may lie in the middle of an edge (see GraphDB.snap), rather than between the
+     * closest vertices as shortestPath does.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param stats Receives the per-query search effort.
+     * @return The route, which is empty if the two points are not connected.
+     */
+    public static Route route(GraphDB g, double stlon, double stlat,
+                              double destlon, double destlat, SearchStats stats) {
+        long queryStart = System.nanoTime();
+        try {
+            long closestStart = System.nanoTime();
+            GraphDB.EdgeSnap start = g.snap(stlon, stlat);
+            GraphDB.EdgeSnap end = g.snap(destlon, destlat);
+            stats.closestNanos = System.nanoTime() - closestStart;
+            if (start == null || end == null
+                    || g.component[start.from] != g.component[end.from]) {
+                return new Route(g, start, null, end);
+            }
+            if (start.sameEdge(end)) {
+                /* An edge is a straight line, so no detour off it can be shorter. */
+                return new Route(g, start, new ContractedGraph.IntList(), end);
             }
-        });
+            int[] sources = {start.from, start.to};
+            double[] sourceDist = {start.toFrom, start.toTo};
+            int[] targets = {end.from, end.to};
+            double[] targetDist = {end.toFrom, end.toTo};
+            return new Route(g, start, search(g, sources, sourceDist, targets, targetDist, stats),
+                    end);
+        } finally {
+            stats.totalNanos = System.nanoTime() - queryStart;
+            stats.publish();
+        }
+    }
 
-        disTo.put(startID, 0.0);
-        f.add(sNode);
+    /* How a seeded core vertex was reached from its source: the source is the core vertex
+     * itself, or an interior vertex of a chain walked towards chainFrom or towards chainTo. */
+    private static final int SELF = 0, TO_FROM = 1, TO_TO = 2;
 
-        //@Source: https://en.wikipedia.org/wiki/A*_search_algorithm
-        while (!f.isEmpty()) {
-            if (f.size() == 0) {
-                return null;
+    /**
+     * A* over the contracted graph from any of the source vertices to any of the targets.
+     * Each source and target is a dense vertex index with an extra distance in miles already
+     * travelled to reach it (sources) or still to travel after it (targets).
+     * @return The dense vertices of the shortest path, or null if no target is reachable.
+     */
+    private static ContractedGraph.IntList search(GraphDB g, int[] sources, double[] sourceDist,
+                                                  int[] targets, double[] targetDist,
+                                                  SearchStats stats) {
+        ContractedGraph cg = g.contracted;
+        int n = cg.size();
+        double[] dist = new double[n];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        int[] predArc = new int[n];
+        int[] pred = new int[n];
+        int[] seed = new int[n];
+        boolean[] settled = new boolean[n];
+        IndexedMinHeap heap = new IndexedMinHeap(n);
+
+        /* The best complete path found so far ends at target bestTarget, entered from core
+         * vertex bestCore (-1 when source and target share a chain), in direction bestKind. */
+        double best = Double.POSITIVE_INFINITY;
+        int bestCore = -1, bestTarget = -1, bestKind = SELF, bestSource = -1;
+
+        for (int i = 0; i < sources.length; i++) {
+            int s = sources[i];
+            if (cg.coreOf[s] >= 0) {
+                seed(g, heap, dist, predArc, pred, seed, cg.coreOf[s], sourceDist[i],
+                        3 * i + SELF, targets, targetDist, stats);
+                continue;
             }
-            GraphDB.Vertice tar = f.poll(); //find the best adj
-            marked.add(tar.id);  //put nodes that we ensure into the closeList as marked.
-            if (tar.equals(eNode)) {
-                break;
-            } else {
-                for (Long i : g.adjacent(tar.id)) {
-                    if (marked.contains(i)) {
-                        continue;
-                        /* renew the disTo of those marked pts */
-                    } else {
-                        if (!f.contains(g.vertice.get(i))) {
-                            // for thoses new nodes, get new disTo
-                            disTo.put(i, disTo.get(tar.id) + g.distance(i, tar.id));
-                            f.add(g.vertice.get(i));
-                            g.vertice.get(i).preNode = tar;
-                        }
-                        //renew the marked pts distance
-                        if (disTo.get(i) > disTo.get(tar.id) + g.distance(i, tar.id)) {
-                            f.remove(g.vertice.get(i));
-                            disTo.put(i, disTo.get(tar.id) + g.distance(i, tar.id));
-                            g.vertice.get(i).preNode = tar;
-                            f.add(g.vertice.get(i));
-                        }
+            int c = cg.chainOf[s];
+            seed(g, heap, dist, predArc, pred, seed, cg.coreOf[cg.chainFrom[c]],
+                    sourceDist[i] + cg.offset[s], 3 * i + TO_FROM, targets, targetDist, stats);
+            seed(g, heap, dist, predArc, pred, seed, cg.coreOf[cg.chainTo[c]],
+                    sourceDist[i] + cg.chainLength[c] - cg.offset[s], 3 * i + TO_TO,
+                    targets, targetDist, stats);
+            for (int j = 0; j < targets.length; j++) {
+                int t = targets[j];
+                if (t == s || (cg.coreOf[t] < 0 && cg.chainOf[t] == c)) {
+                    double d = sourceDist[i] + Math.abs(cg.offset[s] - cg.offset[t])
+                            + targetDist[j];
+                    if (d < best) {
+                        best = d;
+                        bestCore = -1;
+                        bestSource = i;
+                        bestTarget = j;
                     }
+                }
+            }
+        }
 
+        while (!heap.isEmpty() && heap.minKey() < best) {
+            int x = heap.delMin();
+            settled[x] = true;
+            stats.settledNodes++;
+            int v = cg.core[x];
+            for (int j = 0; j < targets.length; j++) {
+                int t = targets[j];
+                double d = Double.POSITIVE_INFINITY;
+                int kind = SELF;
+                if (t == v) {
+                    d = dist[x] + targetDist[j];
+                } else if (cg.coreOf[t] < 0) {
+                    int c = cg.chainOf[t];
+                    if (cg.chainFrom[c] == v) {
+                        d = dist[x] + cg.offset[t] + targetDist[j];
+                        kind = TO_TO;
+                    }
+                    if (cg.chainTo[c] == v
+                            && dist[x] + cg.chainLength[c] - cg.offset[t] + targetDist[j] < d) {
+                        d = dist[x] + cg.chainLength[c] - cg.offset[t] + targetDist[j];
+                        kind = TO_FROM;
+                    }
+                }
+                if (d < best) {
+                    best = d;
+                    bestCore = x;
+                    bestTarget = j;
+                    bestKind = kind;
+                }
+            }
+            for (int a = cg.arcStart[x]; a < cg.arcStart[x + 1]; a++) {
+                int y = cg.arcHead[a];
+                if (settled[y]) {
+                    continue;
+                }
+                stats.relaxedEdges++;
+                double d = dist[x] + cg.arcWeight[a];
+                if (d < dist[y]) {
+                    dist[y] = d;
+                    predArc[y] = a;
+                    pred[y] = x;
+                    double priority = d + heuristic(g, cg.core[y], targets, targetDist);
+                    if (heap.contains(y)) {
+                        heap.decreaseKey(y, priority);
+                        stats.decreaseKeys++;
+                    } else {
+                        heap.insert(y, priority);
+                        stats.heapPushes++;
+                    }
                 }
             }
         }
-        if (f.size() == 0) {
+
+        if (best == Double.POSITIVE_INFINITY) {
             return null;
         }
-        //recall back from the end to start
-        while (!node.equals(sNode)) {
-            best.addFirst(node.id);
-            // System.out.println("nodeID: " + best.get(0));
-            node = node.preNode;
+        ContractedGraph.IntList path = new ContractedGraph.IntList();
+        int t = targets[bestTarget];
+        if (bestCore == -1) {
+            int s = sources[bestSource];
+            path.add(s);
+            if (s != t) {
+                cg.expandBetween(s, t, path);
+            }
+            return path;
+        }
+
+        /* Walk the predecessor arcs back to the seeded core vertex. */
+        ContractedGraph.IntList arcs = new ContractedGraph.IntList();
+        int x = bestCore;
+        while (predArc[x] != -1) {
+            arcs.add(predArc[x]);
+            x = pred[x];
+        }
+        int s = sources[seed[x] / 3];
+        path.add(s);
+        if (seed[x] % 3 == TO_FROM) {
+            cg.expandFrom(s, false, path);
+        } else if (seed[x] % 3 == TO_TO) {
+            cg.expandFrom(s, true, path);
+        }
+        for (int i = arcs.size - 1; i >= 0; i--) {
+            cg.expandArc(arcs.get(i), path);
+        }
+        if (bestKind != SELF) {
+            cg.expandTo(t, bestKind == TO_TO, path);
+        }
+        return path;
+    }
+
+    private static void seed(GraphDB g, IndexedMinHeap heap, double[] dist, int[] predArc,
+                             int[] pred, int[] seed, int x, double d, int how,
+                             int[] targets, double[] targetDist, SearchStats stats) {
+        if (d >= dist[x]) {
+            return;
+        }
+        dist[x] = d;
+        predArc[x] = -1;
+        pred[x] = -1;
+        seed[x] = how;
+        double priority = d + heuristic(g, g.contracted.core[x], targets, targetDist);
+        if (heap.contains(x)) {
+            heap.decreaseKey(x, priority);
+            stats.decreaseKeys++;
+        } else {
+            heap.insert(x, priority);
+            stats.heapPushes++;
+        }
+    }
+
+    /** A lower bound on the remaining distance from dense vertex v to the nearest target. */
+    private static double heuristic(GraphDB g, int v, int[] targets, double[] targetDist) {
+        double h = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < targets.length; j++) {
+            int t = targets[j];
+            h = Math.min(h, GraphDB.distance(g.nodeLon[v], g.nodeLat[v],
+                    g.nodeLon[t], g.nodeLat[t]) + targetDist[j]);
+        }
+        return h;
+    }
+
+    private static List<Long> toIds(GraphDB g, ContractedGraph.IntList path) {
+        List<Long> ids = new ArrayList<>();
+        if (path == null) {
+            return ids;
+        }
+        for (int i = 0; i < path.size; i++) {
+            ids.add(g.nodeId[path.get(i)]);
         }
-        best.addFirst(startID);
-        return best;
+        return ids;
     }
 
 
@@ -137,6 +316,134 @@ public class Router {
     }
 
 
+    /**
+     * A route found by Router.route: the vertices passed through, plus the full polyline
+     * to draw, which starts and ends at the snapped points rather than at a vertex.
+     */
+    public static class Route {
+        /** OSM ids of the vertices on the route, in order. */
+        final List<Long> nodes;
+        /** The polyline from the start point through every vertex to the end point. */
+        final double[] lon, lat;
+        /** A number unique to this route, so that images drawn with it can be cached. */
+        final long id = NEXT_ID.getAndIncrement();
+        /** Routes are simplified for drawing as long as they stay within this many pixels. */
+        static final double TOLERANCE_PX = 0.5;
+        /** The points of the polyline kept at each depth; see simplified. */
+        private final Map<Integer, int[]> simplified = new ConcurrentHashMap<>();
+
+        private static final AtomicLong NEXT_ID = new AtomicLong();
+        /** The empty route, for when there is nothing to show. */
+        static final Route EMPTY = new Route();
+
+        private Route() {
+            nodes = new ArrayList<>();
+            lon = new double[0];
+            lat = new double[0];
+        }
+
+        Route(GraphDB g, GraphDB.EdgeSnap start, ContractedGraph.IntList path,
+              GraphDB.EdgeSnap end) {
+            nodes = toIds(g, path);
+            if (path == null) {
+                lon = new double[0];
+                lat = new double[0];
+                return;
+            }
+            lon = new double[path.size + 2];
+            lat = new double[path.size + 2];
+            lon[0] = start.lon;
+            lat[0] = start.lat;
+            for (int i = 0; i < path.size; i++) {
+                lon[i + 1] = g.nodeLon[path.get(i)];
+                lat[i + 1] = g.nodeLat[path.get(i)];
+            }
+            lon[path.size + 1] = end.lon;
+            lat[path.size + 1] = end.lat;
+        }
+
+        /** Returns true if no route was found. */
+        public boolean isEmpty() {
+            return lon.length == 0;
+        }
+
+        /**
+         * Returns the indices of the points of the polyline that are enough to draw it at a
+         * depth, within TOLERANCE_PX pixels. Computed once per depth and kept with the route.
+         */
+        int[] simplified(int depth) {
+            return simplified.computeIfAbsent(depth, d -> {
+                int n = 1 << d;
+                double xScale = n * MapServer.TILE_SIZE
+                        / (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+                double yScale = n * MapServer.TILE_SIZE
+                        / (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+                double[] x = new double[lon.length], y = new double[lat.length];
+                for (int i = 0; i < lon.length; i++) {
+                    x[i] = lon[i] * xScale;
+                    y[i] = lat[i] * yScale;
+                }
+                return Polylines.simplify(x, y, TOLERANCE_PX);
+            });
+        }
+
+        public List<Long> nodes() {
+            return nodes;
+        }
+    }
+
+    /**
+     * The search effort of a single shortestPath query. Every query also adds its numbers to
+     * the "router.*" entries of Metrics, so the totals can be read from /metrics.
+     */
+    public static class SearchStats {
+        private static final Metrics.Counter QUERIES = Metrics.counter("router.queries");
+        private static final Metrics.Counter SETTLED = Metrics.counter("router.settled_nodes");
+        private static final Metrics.Counter RELAXED = Metrics.counter("router.relaxed_edges");
+        private static final Metrics.Counter PUSHES = Metrics.counter("router.heap_pushes");
+        private static final Metrics.Counter DECREASES = Metrics.counter("router.decrease_keys");
+        private static final Metrics.Histogram CLOSEST_TIME =
+                Metrics.histogram("router.closest_time");
+        private static final Metrics.Histogram TOTAL_TIME = Metrics.histogram("router.total_time");
+
+        /** Number of vertices polled from the priority queue. */
+        long settledNodes;
+        /** Number of edges looked at from a settled vertex to an unsettled one. */
+        long relaxedEdges;
+        /** Number of vertices inserted into the priority queue. */
+        long heapPushes;
+        /** Number of times a queued vertex got a shorter distance. */
+        long decreaseKeys;
+        /** Time spent snapping the start and end points to the graph. */
+        long closestNanos;
+        /** Time spent on the whole query, including closestNanos. */
+        long totalNanos;
+
+        void publish() {
+            QUERIES.increment();
+            SETTLED.add(settledNodes);
+            RELAXED.add(relaxedEdges);
+            PUSHES.add(heapPushes);
+            DECREASES.add(decreaseKeys);
+            CLOSEST_TIME.record(closestNanos);
+            TOTAL_TIME.record(totalNanos);
+        }
+
+        /**
+         * Returns the stats in a form that can be attached to a Json response.
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("settled_nodes", settledNodes);
+            m.put("relaxed_edges", relaxedEdges);
+            m.put("heap_pushes", heapPushes);
+            m.put("decrease_keys", decreaseKeys);
+            m.put("closest_ms", closestNanos / 1e6);
+            m.put("total_ms", totalNanos / 1e6);
+            return m;
+        }
+    }
+
     /**
      * Class to represent a navigation direction, which consists of 3 attributes:
      * a direction to go, a way, and the distance to travel for.
@@ -0,0 +1,53 @@
+import java.util.Random;
+
+/**
+ * This class provides a main method for timing Router on a fixed set of random queries
+ * over the map area, e.g. to compare graph layouts before and after a change. It prints the
+ * graph build time, the mean time per query, and the search effort counters from Metrics.
+ * Usage: RouterBenchmark [osm file] [number of queries]
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int WARMUP_QUERIES = 200;
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        long buildStart = System.nanoTime();
+        GraphDB g = new GraphDB(path);
+        System.out.printf("Built graph of %d vertices in %.1f ms.%n",
+                g.nodeId.length, (System.nanoTime() - buildStart) / 1e6);
+
+        run(g, WARMUP_QUERIES, new Random(1));
+        Metrics.Histogram time = Metrics.histogram("router.total_time");
+        long before = time.count();
+        long start = System.nanoTime();
+        int found = run(g, queries, new Random(2));
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%d queries (%d routed) in %.1f ms: %.3f ms per query.%n",
+                queries, found, elapsed / 1e6, elapsed / 1e6 / queries);
+        System.out.printf("p50 %.3f ms, p99 %.3f ms over %d queries in total.%n",
+                time.quantileMillis(0.5), time.quantileMillis(0.99), time.count() - before);
+        System.out.println(Metrics.snapshot());
+    }
+
+    private static int run(GraphDB g, int queries, Random random) {
+        int found = 0;
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        for (int i = 0; i < queries; i++) {
+            double stlon = MapServer.ROOT_ULLON + random.nextDouble() * width;
+            double stlat = MapServer.ROOT_LRLAT + random.nextDouble() * height;
+            double destlon = MapServer.ROOT_ULLON + random.nextDouble() * width;
+            double destlat = MapServer.ROOT_LRLAT + random.nextDouble() * height;
+            Router.Route route = Router.route(g, stlon, stlat, destlon, destlat,
+                    new Router.SearchStats());
+            if (!route.isEmpty()) {
+                found += 1;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,286 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A static, packed R-tree over the road segments (edges) of a GraphDB, bulk loaded with the
+ * Sort-Tile-Recursive algorithm. The boxes of all levels live in four flat arrays: the leaf
+ * level holds one box per segment, and every box above it covers NODE_SIZE consecutive boxes
+ * of the level below, up to a single root box.
+ *
+ * Distances are measured in a local equirectangular projection (longitude scaled by the
+ * cosine of the mean latitude), which is plenty accurate at the size of a city.
+ */
+public class SegmentRTree {
+    private static final int NODE_SIZE = 16;
+
+    /** End points (dense vertex indices) of each segment, in tree order. */
+    final int[] segFrom, segTo;
+    private final double[] minX, minY, maxX, maxY;
+    /** Boxes of level k are levelStart[k] .. levelStart[k + 1]; level 0 are the segments. */
+    private final int[] levelStart;
+    private final double[] lon, lat;
+    private final double scale;
+
+    /**
+     * Bulk loads the tree with every edge of g.
+     * @param g A graph whose dense arrays have been built.
+     */
+    SegmentRTree(GraphDB g) {
+        lon = g.nodeLon;
+        lat = g.nodeLat;
+        double meanLat = 0;
+        for (double l : lat) {
+            meanLat += l;
+        }
+        scale = Math.cos(Math.toRadians(lat.length == 0 ? 0 : meanLat / lat.length));
+
+        int n = 0;
+        for (int v = 0; v < lon.length; v++) {
+            for (int e = g.adjStart[v]; e < g.adjStart[v + 1]; e++) {
+                if (v < g.adjList[e]) {
+                    n += 1;
+                }
+            }
+        }
+        Integer[] order = new Integer[n];
+        int[] from = new int[n], to = new int[n];
+        int s = 0;
+        for (int v = 0; v < lon.length; v++) {
+            for (int e = g.adjStart[v]; e < g.adjStart[v + 1]; e++) {
+                if (v < g.adjList[e]) {
+                    from[s] = v;
+                    to[s] = g.adjList[e];
+                    order[s] = s;
+                    s += 1;
+                }
+            }
+        }
+        strSort(order, from, to);
+        segFrom = new int[n];
+        segTo = new int[n];
+        for (int i = 0; i < n; i++) {
+            segFrom[i] = from[order[i]];
+            segTo[i] = to[order[i]];
+        }
+
+        int levels = 1;
+        int total = n;
+        for (int size = n; size > 1; size = (size + NODE_SIZE - 1) / NODE_SIZE) {
+            total += (size + NODE_SIZE - 1) / NODE_SIZE;
+            levels += 1;
+        }
+        levelStart = new int[levels + 1];
+        minX = new double[total];
+        minY = new double[total];
+        maxX = new double[total];
+        maxY = new double[total];
+        for (int i = 0; i < n; i++) {
+            minX[i] = Math.min(x(segFrom[i]), x(segTo[i]));
+            maxX[i] = Math.max(x(segFrom[i]), x(segTo[i]));
+            minY[i] = Math.min(lat[segFrom[i]], lat[segTo[i]]);
+            maxY[i] = Math.max(lat[segFrom[i]], lat[segTo[i]]);
+        }
+        levelStart[1] = n;
+        for (int k = 1; k < levels; k++) {
+            int childStart = levelStart[k - 1];
+            int childEnd = levelStart[k];
+            int b = childEnd;
+            for (int c = childStart; c < childEnd; c += NODE_SIZE, b++) {
+                minX[b] = Double.POSITIVE_INFINITY;
+                minY[b] = Double.POSITIVE_INFINITY;
+                maxX[b] = Double.NEGATIVE_INFINITY;
+                maxY[b] = Double.NEGATIVE_INFINITY;
+                for (int i = c; i < Math.min(c + NODE_SIZE, childEnd); i++) {
+                    minX[b] = Math.min(minX[b], minX[i]);
+                    minY[b] = Math.min(minY[b], minY[i]);
+                    maxX[b] = Math.max(maxX[b], maxX[i]);
+                    maxY[b] = Math.max(maxY[b], maxY[i]);
+                }
+            }
+            levelStart[k + 1] = b;
+        }
+    }
+
+    /** Orders segments into vertical slices by center x, and each slice by center y. */
+    private void strSort(Integer[] order, int[] from, int[] to) {
+        int n = order.length;
+        double[] cx = new double[n], cy = new double[n];
+        for (int i = 0; i < n; i++) {
+            cx[i] = (x(from[i]) + x(to[i])) / 2;
+            cy[i] = (lat[from[i]] + lat[to[i]]) / 2;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(cx[a], cx[b]));
+        int leaves = (n + NODE_SIZE - 1) / NODE_SIZE;
+        int sliceSize = NODE_SIZE * (int) Math.ceil(Math.sqrt(leaves));
+        for (int i = 0; i < n; i += sliceSize) {
+            Arrays.sort(order, i, Math.min(i + sliceSize, n),
+                    (a, b) -> Double.compare(cy[a], cy[b]));
+        }
+    }
+
+    private double x(int v) {
+        return lon[v] * scale;
+    }
+
+    /** Returns the number of segments in the tree. */
+    int size() {
+        return segFrom.length;
+    }
+
+    /**
+     * Finds the segment closest to a point, by best-first search over the boxes.
+     * @param qlon The query longitude.
+     * @param qlat The query latitude.
+     * @return The segment's position in segFrom/segTo, or -1 if the tree is empty.
+     */
+    int nearest(double qlon, double qlat) {
+        if (size() == 0) {
+            return -1;
+        }
+        double px = qlon * scale;
+        double py = qlat;
+        int root = levelStart[levelStart.length - 1] - 1;
+        BoxQueue queue = new BoxQueue();
+        queue.push(boxDistance2(root, px, py), root);
+        while (!queue.isEmpty()) {
+            int b = queue.pop();
+            if (b < levelStart[1]) {
+                return b;
+            }
+            int k = level(b);
+            int childStart = levelStart[k - 1] + (b - levelStart[k]) * NODE_SIZE;
+            int childEnd = Math.min(childStart + NODE_SIZE, levelStart[k]);
+            for (int c = childStart; c < childEnd; c++) {
+                double d2 = k == 1 ? segmentDistance2(c, px, py) : boxDistance2(c, px, py);
+                queue.push(d2, c);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Calls visit with every segment whose bounding box overlaps a box, by depth-first search
+     * over the boxes.
+     * @param minLon The west side of the box.
+     * @param minLat The south side of the box.
+     * @param maxLon The east side of the box.
+     * @param maxLat The north side of the box.
+     * @param visit Takes the position of each segment in segFrom/segTo.
+     */
+    void search(double minLon, double minLat, double maxLon, double maxLat, IntConsumer visit) {
+        if (size() == 0) {
+            return;
+        }
+        double x0 = minLon * scale, x1 = maxLon * scale;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = levelStart[levelStart.length - 1] - 1;
+        while (top > 0) {
+            int b = stack[--top];
+            if (maxX[b] < x0 || minX[b] > x1 || maxY[b] < minLat || minY[b] > maxLat) {
+                continue;
+            }
+            if (b < levelStart[1]) {
+                visit.accept(b);
+                continue;
+            }
+            int k = level(b);
+            int childStart = levelStart[k - 1] + (b - levelStart[k]) * NODE_SIZE;
+            int childEnd = Math.min(childStart + NODE_SIZE, levelStart[k]);
+            if (top + NODE_SIZE > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            for (int c = childStart; c < childEnd; c++) {
+                stack[top++] = c;
+            }
+        }
+    }
+
+    /**
+     * Returns how far along segment s, from segFrom[s] (0) to segTo[s] (1), the point on
+     * the segment closest to the query point lies.
+     */
+    double fraction(int s, double qlon, double qlat) {
+        double ax = x(segFrom[s]), ay = lat[segFrom[s]];
+        double dx = x(segTo[s]) - ax, dy = lat[segTo[s]] - ay;
+        double len2 = dx * dx + dy * dy;
+        if (len2 == 0) {
+            return 0;
+        }
+        double t = ((qlon * scale - ax) * dx + (qlat - ay) * dy) / len2;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    private int level(int b) {
+        int k = 0;
+        while (b >= levelStart[k + 1]) {
+            k += 1;
+        }
+        return k;
+    }
+
+    private double boxDistance2(int b, double px, double py) {
+        double dx = Math.max(0, Math.max(minX[b] - px, px - maxX[b]));
+        double dy = Math.max(0, Math.max(minY[b] - py, py - maxY[b]));
+        return dx * dx + dy * dy;
+    }
+
+    private double segmentDistance2(int s, double px, double py) {
+        double t = fraction(s, px / scale, py);
+        double ax = x(segFrom[s]), ay = lat[segFrom[s]];
+        double cx = ax + t * (x(segTo[s]) - ax) - px;
+        double cy = ay + t * (lat[segTo[s]] - ay) - py;
+        return cx * cx + cy * cy;
+    }
+
+    /**
+     * A binary min-heap of box indices keyed by squared distance, for best-first search.
+     */
+    private static class BoxQueue {
+        private double[] keys = new double[64];
+        private int[] boxes = new int[64];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(double key, int box) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                boxes = Arrays.copyOf(boxes, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && keys[(i - 1) / 2] > key) {
+                keys[i] = keys[(i - 1) / 2];
+                boxes[i] = boxes[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            keys[i] = key;
+            boxes[i] = box;
+        }
+
+        int pop() {
+            int top = boxes[0];
+            size -= 1;
+            double key = keys[size];
+            int box = boxes[size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int j = 2 * i + 1;
+                if (j + 1 < size && keys[j + 1] < keys[j]) {
+                    j += 1;
+                }
+                if (key <= keys[j]) {
+                    break;
+                }
+                keys[i] = keys[j];
+                boxes[i] = boxes[j];
+                i = j;
+            }
+            keys[i] = key;
+            boxes[i] = box;
+            return top;
+        }
+    }
+}
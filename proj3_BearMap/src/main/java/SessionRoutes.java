@@ -0,0 +1,113 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The current route of each client session, so that clients routing at the same time do not
+ * see each other's routes. Sessions are dropped once they have been idle for too long, and
+ * when there are too many, the longest idle session makes room for a new one.
+ */
+public class SessionRoutes {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int SESSION_ID_BYTES = 16;
+
+    private final ConcurrentHashMap<String, Entry> routes = new ConcurrentHashMap<>();
+    private final int maxSessions;
+    private final long idleMillis;
+    private final LongSupplier clock;
+    private final Metrics.Counter evictions = Metrics.counter("sessions.evictions");
+
+    /**
+     * @param maxSessions The most sessions to keep a route for.
+     * @param idleMillis How long a session keeps its route without being used.
+     */
+    SessionRoutes(int maxSessions, long idleMillis) {
+        this(maxSessions, idleMillis, System::currentTimeMillis);
+    }
+
+    /** As above, but with the given clock, in milliseconds. */
+    SessionRoutes(int maxSessions, long idleMillis, LongSupplier clock) {
+        this.maxSessions = maxSessions;
+        this.idleMillis = idleMillis;
+        this.clock = clock;
+        Metrics.gauge("sessions.active", this::size);
+    }
+
+    /** Returns a new, unguessable session id. */
+    static String newSessionId() {
+        byte[] id = new byte[SESSION_ID_BYTES];
+        RANDOM.nextBytes(id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+    }
+
+    /** Returns true if id looks like a session id from newSessionId. */
+    static boolean isSessionId(String id) {
+        return id != null && id.length() == (SESSION_ID_BYTES * 4 + 2) / 3
+                && id.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '-' || c == '_');
+    }
+
+    /** Returns the route of a session, or Route.EMPTY if it has none or it has expired. */
+    Router.Route get(String session) {
+        long now = clock.getAsLong();
+        Entry e = routes.get(session);
+        if (e == null) {
+            return Router.Route.EMPTY;
+        }
+        if (now - e.lastUsed > idleMillis) {
+            routes.remove(session, e);
+            return Router.Route.EMPTY;
+        }
+        e.lastUsed = now;
+        return e.route;
+    }
+
+    /** Sets the route of a session, making room for it if there are too many sessions. */
+    void put(String session, Router.Route route) {
+        if (!routes.containsKey(session) && routes.size() >= maxSessions) {
+            expire();
+            if (routes.size() >= maxSessions) {
+                evictIdlest();
+            }
+        }
+        routes.put(session, new Entry(route, clock.getAsLong()));
+    }
+
+    /** Forgets the route of a session. */
+    void remove(String session) {
+        routes.remove(session);
+    }
+
+    /** Drops every session that has been idle for too long. */
+    void expire() {
+        long now = clock.getAsLong();
+        routes.entrySet().removeIf(e -> now - e.getValue().lastUsed > idleMillis);
+    }
+
+    int size() {
+        return routes.size();
+    }
+
+    private void evictIdlest() {
+        Map.Entry<String, Entry> idlest = null;
+        for (Map.Entry<String, Entry> e : routes.entrySet()) {
+            if (idlest == null || e.getValue().lastUsed < idlest.getValue().lastUsed) {
+                idlest = e;
+            }
+        }
+        if (idlest != null && routes.remove(idlest.getKey(), idlest.getValue())) {
+            evictions.increment();
+        }
+    }
+
+    private static class Entry {
+        final Router.Route route;
+        volatile long lastUsed;
+
+        Entry(Router.Route route, long lastUsed) {
+            this.route = route;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent computations of the same key: while one thread computes the value for
+ * a key, other threads asking for that key wait for its result instead of computing it again.
+ * Nothing is kept once a computation is over; pair this with a cache for that. The number of
+ * computations saved is counted in Metrics under the name given.
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Metrics.Counter coalesced;
+
+    /** @param name Name in Metrics, e.g. "raster_flights". */
+    SingleFlight(String name) {
+        coalesced = Metrics.counter(name + ".coalesced");
+        Metrics.gauge(name + ".in_flight", inFlight::size);
+    }
+
+    /**
+     * Returns compute(key), or the result of the computation of key already under way in
+     * another thread. If that computation throws, so does this.
+     */
+    V run(K key, Function<K, V> compute) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> theirs = inFlight.putIfAbsent(key, mine);
+        if (theirs != null) {
+            coalesced.increment();
+            try {
+                return theirs.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            V value = compute.apply(key);
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The whole tile pyramid packed into one file, read through a memory map, so that reading a
+ * tile costs at most a page fault instead of an open, read and close of its own file.
+ *
+ * The file starts with a header (magic, version, deepest depth) and a fixed-size index with
+ * one slot per possible tile, depth by depth and row by row: tile (d, x, y) is slot
+ * (4^d - 1) / 3 + y * 2^d + x. Each slot holds the offset, length and CRC32 of the tile's PNG
+ * bytes, and a length of 0 means the tile is missing. The PNG bytes follow, in slot order.
+ *
+ * The main method packs a directory of tiles: TileArchive [tile directory] [archive file]
+ */
+public class TileArchive {
+    private static final int MAGIC = 0x424d5441; // "BMTA"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int SLOT_BYTES = 16;
+
+    private final MappedByteBuffer buffer;
+    private final int maxDepth;
+
+    private TileArchive(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a tile archive.");
+        }
+        maxDepth = buffer.getInt(8);
+        if (maxDepth < 0 || maxDepth > 15
+                || buffer.capacity() < HEADER_BYTES + (long) slots(maxDepth) * SLOT_BYTES) {
+            throw new IOException("Truncated tile archive.");
+        }
+        /* Check every slot once here, so that get can trust them. */
+        long dataStart = HEADER_BYTES + (long) slots(maxDepth) * SLOT_BYTES;
+        for (int slot = 0; slot < slots(maxDepth); slot++) {
+            int at = HEADER_BYTES + slot * SLOT_BYTES;
+            long offset = buffer.getLong(at);
+            int length = buffer.getInt(at + 8);
+            if (length < 0 || length > 0
+                    && (offset < dataStart || offset + length > buffer.capacity())) {
+                throw new IOException("Corrupt tile archive: slot " + slot
+                        + " points outside the file.");
+            }
+        }
+    }
+
+    /**
+     * Maps an archive read only.
+     * @param path The archive file, as written by pack.
+     * @throws IOException If the file is not a tile archive, or is truncated or corrupt.
+     */
+    static TileArchive open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Tile archive larger than 2 GB.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            return new TileArchive(buffer);
+        }
+    }
+
+    /** Returns the deepest depth the archive has room for. */
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the PNG bytes of tile (depth, x, y) as a read only view of the map, or null if
+     * the archive does not have that tile.
+     */
+    ByteBuffer get(int depth, int x, int y) {
+        int slot = slot(depth, x, y);
+        if (slot < 0) {
+            return null;
+        }
+        int at = HEADER_BYTES + slot * SLOT_BYTES;
+        long offset = buffer.getLong(at);
+        int length = buffer.getInt(at + 8);
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer tile = buffer.asReadOnlyBuffer();
+        tile.position((int) offset);
+        tile.limit((int) offset + length);
+        return tile.slice();
+    }
+
+    /** Returns the PNG bytes of the tile with the given file name, e.g. "d3_x2_y5.png". */
+    ByteBuffer get(String name) {
+        int[] dxy = parseName(name);
+        return dxy == null ? null : get(dxy[0], dxy[1], dxy[2]);
+    }
+
+    /** Returns the CRC32 of the PNG bytes of tile (depth, x, y), or 0 if there is none. */
+    long crc(int depth, int x, int y) {
+        int slot = slot(depth, x, y);
+        return slot < 0 ? 0 : buffer.getInt(HEADER_BYTES + slot * SLOT_BYTES + 12) & 0xffffffffL;
+    }
+
+    /** Returns the index slot of tile (depth, x, y), or -1 if it is outside the pyramid. */
+    int slot(int depth, int x, int y) {
+        int n = 1 << depth;
+        if (depth < 0 || depth > maxDepth || x < 0 || x >= n || y < 0 || y >= n) {
+            return -1;
+        }
+        return slots(depth - 1) + y * n + x;
+    }
+
+    /** Returns the number of tiles in depths 0 through depth, which is (4^(depth+1) - 1) / 3. */
+    private static int slots(int depth) {
+        return ((1 << (2 * (depth + 1))) - 1) / 3;
+    }
+
+    /** Returns {depth, x, y} of a tile file name such as "d3_x2_y5.png", or null. */
+    static int[] parseName(String name) {
+        int x = name.indexOf("_x");
+        int y = name.indexOf("_y");
+        if (!name.startsWith("d") || !name.endsWith(".png") || x < 0 || y < x) {
+            return null;
+        }
+        try {
+            return new int[]{Integer.parseInt(name.substring(1, x)),
+                Integer.parseInt(name.substring(x + 2, y)),
+                Integer.parseInt(name.substring(y + 2, name.length() - 4))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Packs the tiles d{depth}_x{x}_y{y}.png of depths 0 through maxDepth in a directory into
+     * an archive file. Tiles that are not in the directory are left out.
+     * @return The number of tiles packed.
+     */
+    static int pack(File dir, int maxDepth, Path archive) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + slots(maxDepth) * SLOT_BYTES);
+        index.putInt(MAGIC).putInt(VERSION).putInt(maxDepth);
+        int packed = 0;
+        long offset = index.capacity();
+        try (FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            out.position(offset);
+            for (int d = 0; d <= maxDepth; d++) {
+                for (int y = 0; y < 1 << d; y++) {
+                    for (int x = 0; x < 1 << d; x++) {
+                        File tile = new File(dir, Rasterer.Raster.tileName(d, x, y));
+                        if (!tile.isFile()) {
+                            index.putLong(0).putInt(0).putInt(0);
+                            continue;
+                        }
+                        byte[] png = Files.readAllBytes(tile.toPath());
+                        CRC32 crc = new CRC32();
+                        crc.update(png);
+                        index.putLong(offset).putInt(png.length).putInt((int) crc.getValue());
+                        out.write(ByteBuffer.wrap(png));
+                        offset += png.length;
+                        packed += 1;
+                    }
+                }
+            }
+            index.flip();
+            out.write(index, 0);
+        }
+        return packed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String dir = args.length > 0 ? args[0] : "../library-sp18/data/proj3_imgs/";
+        String archive = args.length > 1 ? args[1] : "../library-sp18/data/proj3_imgs.tiles";
+        long start = System.nanoTime();
+        int packed = pack(new File(dir), Rasterer.MAX_DEPTH, Paths.get(archive));
+        System.out.printf("Packed %d tiles into %s (%d bytes) in %.1f ms.%n", packed, archive,
+                Files.size(Paths.get(archive)), (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Loads the tiles a client is likely to ask for next into the tile cache, in the background.
+ * The last few views of each session show which way it is panning; the prefetcher then loads
+ * the tiles just past the view in that direction, and the tiles of the same area one depth
+ * shallower and deeper, for zooming.
+ *
+ * Prefetching never competes with requests: it runs on one thread of the lowest priority,
+ * waits while the server is busy drawing rasters, loads only so many tiles per view, and
+ * drops the oldest predictions when too many are queued.
+ */
+public class TilePrefetcher {
+    /** How many recent views are kept per session. */
+    private static final int HISTORY = 3;
+    /** How long to wait before checking again whether the server is still busy. */
+    private static final long BUSY_BACKOFF_MILLIS = 20;
+
+    private final LruCache<String, Deque<Rasterer.Raster>> history;
+    private final LinkedBlockingDeque<String> queue = new LinkedBlockingDeque<>();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final int maxQueued, maxPerView, maxDepth;
+    private final Predicate<String> cached;
+    private final Consumer<String> load;
+    private final BooleanSupplier busy;
+    private final Metrics.Counter loaded = Metrics.counter("prefetch.loaded");
+    private final Metrics.Counter dropped = Metrics.counter("prefetch.dropped");
+
+    /**
+     * Starts the prefetching thread.
+     * @param maxSessions How many sessions to keep views of.
+     * @param maxQueued How many tiles may wait to be loaded.
+     * @param maxPerView How many tiles to predict from one view.
+     * @param maxDepth The deepest depth rasters are drawn at.
+     * @param cached Tells whether a tile, by file name, is cached already.
+     * @param load Loads a tile, by file name, into the cache.
+     * @param busy Tells whether the server is busy with requests.
+     */
+    TilePrefetcher(int maxSessions, int maxQueued, int maxPerView, int maxDepth,
+                   Predicate<String> cached, Consumer<String> load, BooleanSupplier busy) {
+        this.history = new LruCache<>("prefetch_sessions", maxSessions, views -> 1);
+        this.maxQueued = maxQueued;
+        this.maxPerView = maxPerView;
+        this.maxDepth = maxDepth;
+        this.cached = cached;
+        this.load = load;
+        this.busy = busy;
+        Metrics.gauge("prefetch.queued", queue::size);
+        Thread worker = new Thread(this::work, "tile-prefetcher");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /** Records that a session was shown a raster, and queues the tiles it may want next. */
+    void viewed(String session, Rasterer.Raster raster) {
+        Deque<Rasterer.Raster> views = history.get(session, s -> new ArrayDeque<>());
+        Rasterer.Raster previous;
+        synchronized (views) {
+            previous = views.peekLast();
+            views.addLast(raster);
+            while (views.size() > HISTORY) {
+                views.removeFirst();
+            }
+        }
+        for (String tile : predict(previous, raster, maxPerView, maxDepth)) {
+            if (!cached.test(tile) && queued.add(tile)) {
+                queue.addLast(tile);
+                while (queue.size() > maxQueued) {
+                    String oldest = queue.pollFirst();
+                    if (oldest != null) {
+                        queued.remove(oldest);
+                        dropped.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file names of the tiles to load after a view, most likely first: those just
+     * past the view in the direction it moved from the previous view, then the tiles of the
+     * view one depth shallower, then those of its middle half one depth deeper.
+     * @param previous The view before, or null.
+     * @param current The view now.
+     * @param limit The most tiles to return.
+     * @param maxDepth The deepest depth rasters are drawn at, and so tiles are needed at.
+     */
+    static List<String> predict(Rasterer.Raster previous, Rasterer.Raster current, int limit,
+                                int maxDepth) {
+        List<String> tiles = new ArrayList<>();
+        int d = current.depth;
+        if (previous != null && previous.depth == d) {
+            double dx = (current.ulLon + current.lrLon) - (previous.ulLon + previous.lrLon);
+            double dy = (previous.ulLat + previous.lrLat) - (current.ulLat + current.lrLat);
+            int stepX = (int) Math.signum(dx), stepY = (int) Math.signum(dy);
+            int x = stepX > 0 ? current.xEnd + 1 : current.xStart - 1;
+            int y = stepY > 0 ? current.yEnd + 1 : current.yStart - 1;
+            if (stepX != 0) {
+                addTiles(tiles, d, x, x, current.yStart, current.yEnd);
+            }
+            if (stepY != 0) {
+                addTiles(tiles, d, current.xStart, current.xEnd, y, y);
+            }
+            if (stepX != 0 && stepY != 0) {
+                addTiles(tiles, d, x, x, y, y);
+            }
+        }
+        if (d > 0) {
+            Rasterer.Raster up = Rasterer.cover(d - 1, current.ulLon, current.ulLat,
+                    current.lrLon, current.lrLat, true);
+            addTiles(tiles, up.depth, up.xStart, up.xEnd, up.yStart, up.yEnd);
+        }
+        if (d < maxDepth) {
+            double w = (current.lrLon - current.ulLon) / 4;
+            double h = (current.ulLat - current.lrLat) / 4;
+            Rasterer.Raster down = Rasterer.cover(d + 1, current.ulLon + w, current.ulLat - h,
+                    current.lrLon - w, current.lrLat + h, true);
+            addTiles(tiles, down.depth, down.xStart, down.xEnd, down.yStart, down.yEnd);
+        }
+        return tiles.size() > limit ? tiles.subList(0, limit) : tiles;
+    }
+
+    /** Adds the names of the tiles in a range, skipping any outside the pyramid. */
+    private static void addTiles(List<String> tiles, int depth, int x0, int x1, int y0, int y1) {
+        int n = 1 << depth;
+        for (int y = Math.max(y0, 0); y <= Math.min(y1, n - 1); y++) {
+            for (int x = Math.max(x0, 0); x <= Math.min(x1, n - 1); x++) {
+                tiles.add(Rasterer.Raster.tileName(depth, x, y));
+            }
+        }
+    }
+
+    private void work() {
+        while (true) {
+            try {
+                String tile = queue.takeFirst();
+                while (busy.getAsBoolean()) {
+                    Thread.sleep(BUSY_BACKOFF_MILLIS);
+                }
+                queued.remove(tile);
+                if (!cached.test(tile)) {
+                    load.accept(tile);
+                    loaded.increment();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
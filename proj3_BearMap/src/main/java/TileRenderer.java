@@ -0,0 +1,135 @@
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Draws the tiles of depths deeper than the pre-rendered pyramid from the roads of a GraphDB,
+ * so that the map can be zoomed in past Rasterer.MAX_DEPTH. Only the roads near a tile are
+ * drawn, found with the graph's SegmentRTree. Every tile drawn is saved as a PNG file named
+ * like the pyramid's, so it is drawn only once; the caller is expected to keep the images it
+ * uses in memory, as MapServer does in its tile cache.
+ */
+public class TileRenderer {
+    private static final Color LAND = new Color(242, 239, 233);
+    private static final Color CASING = new Color(190, 180, 170);
+    private static final Color ROAD = Color.WHITE;
+    /** Width of roads in pixels one depth past the pyramid, growing 1.5 times per depth. */
+    private static final double ROAD_PIXELS = 4;
+    private static final double MAX_ROAD_PIXELS = 24;
+
+    private final GraphDB g;
+    private final File dir;
+    private final Metrics.Counter rendered = Metrics.counter("renderer.rendered");
+    private final Metrics.Histogram renderTime = Metrics.histogram("renderer.render_time");
+
+    /**
+     * @param g The graph whose roads to draw.
+     * @param dir The directory to keep drawn tiles in, which is created if missing.
+     */
+    TileRenderer(GraphDB g, File dir) {
+        this.g = g;
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("Cannot create " + dir + "; rendered tiles will not be kept.");
+        }
+    }
+
+    /** Returns tile (depth, x, y), read from its file if it was drawn before. */
+    BufferedImage tile(int depth, int x, int y) {
+        File file = new File(dir, Rasterer.Raster.tileName(depth, x, y));
+        if (file.isFile()) {
+            try {
+                BufferedImage img = ImageIO.read(file);
+                if (img != null) {
+                    return img;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        BufferedImage img = render(depth, x, y);
+        save(img, file);
+        return img;
+    }
+
+    /** Returns the file of tile (depth, x, y), drawing the tile first if it has none yet. */
+    File file(int depth, int x, int y) {
+        File file = new File(dir, Rasterer.Raster.tileName(depth, x, y));
+        if (!file.isFile()) {
+            save(render(depth, x, y), file);
+        }
+        return file;
+    }
+
+    /** Draws tile (depth, x, y): land, with every road crossing it as a cased white line. */
+    BufferedImage render(int depth, int x, int y) {
+        long start = System.nanoTime();
+        int size = MapServer.TILE_SIZE;
+        int n = 1 << depth;
+        double blockX = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / n;
+        double blockY = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / n;
+        double ulLon = MapServer.ROOT_ULLON + x * blockX;
+        double ulLat = MapServer.ROOT_ULLAT - y * blockY;
+        double width = Math.min(MAX_ROAD_PIXELS,
+                ROAD_PIXELS * Math.pow(1.5, depth - Rasterer.MAX_DEPTH - 1));
+
+        /* Roads just outside the tile still show at its edges, as far as their width. */
+        double padX = (width / 2 + 1) * blockX / size, padY = (width / 2 + 1) * blockY / size;
+        SegmentRTree segments = g.segments;
+        Path2D.Double roads = new Path2D.Double();
+        segments.search(ulLon - padX, ulLat - blockY - padY, ulLon + blockX + padX, ulLat + padY,
+            s -> {
+                int v = segments.segFrom[s], w = segments.segTo[s];
+                roads.moveTo((g.nodeLon[v] - ulLon) / blockX * size,
+                        (ulLat - g.nodeLat[v]) / blockY * size);
+                roads.lineTo((g.nodeLon[w] - ulLon) / blockX * size,
+                        (ulLat - g.nodeLat[w]) / blockY * size);
+            });
+
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = img.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setColor(LAND);
+        g2.fillRect(0, 0, size, size);
+        g2.setColor(CASING);
+        g2.setStroke(new BasicStroke((float) width + 2, BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND));
+        g2.draw(roads);
+        g2.setColor(ROAD);
+        g2.setStroke(new BasicStroke((float) width, BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND));
+        g2.draw(roads);
+        g2.dispose();
+        rendered.increment();
+        renderTime.record(System.nanoTime() - start);
+        return img;
+    }
+
+    /**
+     * Writes a tile to its file through a temporary file, so that no one ever reads a file
+     * that is only partly written.
+     */
+    private static void save(BufferedImage img, File file) {
+        File temp = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            ImageIO.write(img, "png", temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (temp != null && temp.isFile()) {
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every task on a new virtual thread, so that a request blocked
+ * on I/O does not hold on to a platform thread. Virtual threads need Java 21 or later, so
+ * they are looked up reflectively and this builds on older Java too. There is no queue and
+ * no thread limit; the number of busy threads is only counted. Like Jetty's own pools it is
+ * a life cycle, so the server that runs on it shuts its executor down when it stops.
+ */
+class VirtualThreadPool extends ContainerLifeCycle implements ThreadPool {
+    private final ExecutorService executor;
+    private final AtomicInteger busy = new AtomicInteger();
+
+    /** Runs tasks on the given executor; create() passes one of virtual threads. */
+    VirtualThreadPool(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** Returns a pool of virtual threads, or null if this Java has no virtual threads. */
+    static VirtualThreadPool create() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new VirtualThreadPool((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        busy.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    busy.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            /* The pool has been stopped. */
+            busy.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /** Stops taking tasks; those already running finish, and join returns once they have. */
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdown();
+        super.doStop();
+    }
+
+    /** Waits until the pool has stopped and its last task has finished. */
+    @Override
+    public void join() throws InterruptedException {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getThreads() {
+        return busy.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    /** Returns the number of tasks running now. */
+    int getBusyThreads() {
+        return busy.get();
+    }
+}
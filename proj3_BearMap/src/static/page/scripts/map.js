@@ -30,6 +30,8 @@ $(function() {
     var getInProgress = false;
     var route_params = {};
     var map;
+    var overlay;
+    var route_line = null;
     var dest;
     var tx = 0, ty = 0;
     var rtx, rty;
@@ -42,11 +44,13 @@ $(function() {
     /* Starting hyper-parameters #machinelearning */
     const zoom_delta = 0.04;
     const base_move_delta = 0.03;
-    const max_level = 7;
+    var max_level = 7; // Raised to what the server draws, once it says
     const min_level = 2; // Level limits based on pulled data
     var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
     var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
     var current_level = 0;
+    const preview_levels = 2; // How much shallower previews of the map are
+    var raster_seq = 0; // Counts raster requests, so that stale previews are not shown
 
     /* Set server URIs */
     if (document.location.hostname !== 'localhost') {
@@ -54,9 +58,10 @@ $(function() {
     } else {
         host = 'http://localhost:4567';
     }
-    const raster_server = host + '/raster';
+    const raster_server = host + '/raster.png';
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
+    const route_overlay = host + '/route_overlay';
     const search = host + '/search';
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
@@ -101,6 +106,39 @@ $(function() {
         }
     }
 
+    /* Shows a raster from a /raster.png response. A preview is drawn from shallower tiles, so it
+       is stretched to the size the full raster will have, keeping the map at the same scale. */
+    function showRaster(xhr) {
+        const header = function(name) {
+            return xhr.getResponseHeader('X-Raster-' + name);
+        };
+        if (map.src.startsWith('blob:')) {
+            URL.revokeObjectURL(map.src);
+        }
+        map.src = URL.createObjectURL(xhr.response);
+        console.log('Updating map with image length: ' + xhr.response.size);
+        ullon_bound = parseFloat(header('Ul-Lon'));
+        ullat_bound = parseFloat(header('Ul-Lat'));
+        lrlon_bound = parseFloat(header('Lr-Lon'));
+        lrlat_bound = parseFloat(header('Lr-Lat'));
+        current_level = parseInt(header('Full-Depth'));
+        max_level = parseInt(header('Max-Depth'));
+        const scale = Math.pow(2, current_level - parseInt(header('Depth')));
+        img_w = parseInt(header('Width')) * scale;
+        img_h = parseInt(header('Height')) * scale;
+        map.style.width = scale === 1 ? '' : img_w + 'px';
+        map.style.height = scale === 1 ? '' : img_h + 'px';
+        wdpp = (lrlon_bound - ullon_bound) / img_w;
+        hdpp = (ullat_bound - lrlat_bound) / img_h;
+        // Compute initial transform
+        tx = - (params.ullon - ullon_bound) * (1 / wdpp);
+        ty = (params.ullat - ullat_bound) * (1 / hdpp);
+        rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
+        rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
+        drawRoute();
+        updateMarkers();
+    }
+
     function updateImg(successCallback) {
         /* Synchronous ajax call for image update.
            Could be async for better experience but then user spam locks up the server.
@@ -108,46 +146,87 @@ $(function() {
            updates which are called before ajax() is called #sigh #why #justjavascriptthings */
         $loadingStatus.show();
         getInProgress = true;
+        const seq = ++raster_seq;
+        var done = false;
+        /* The image comes back as raw PNG bytes; the rest of the raster is in the headers. */
+        const xhr = new XMLHttpRequest();
+        xhr.open('GET', raster_server + '?' + $.param(params));
+        xhr.responseType = 'blob';
+        xhr.onload = function() {
+            if (xhr.status !== 200 && xhr.status !== 204) {
+                xhr.onerror();
+                return;
+            }
+            done = true;
+            if (xhr.getResponseHeader('X-Raster-Query-Success') === 'true') {
+                $loadingStatus.hide();
+                showRaster(xhr);
+                getInProgress = false;
+                if (successCallback) {
+                    successCallback();
+                }
+            } else {
+                $loadingStatus.hide();
+            }
+        };
+        xhr.onerror = function() {
+            getInProgress = false;
+            $errorStatus.show();
+            setTimeout(function() {
+                $errorStatus.fadeOut();
+            }, 4000);
+        };
+        /* Meanwhile, a coarse preview of the same area is shown if it comes back first. */
+        const preview = new XMLHttpRequest();
+        preview.open('GET', raster_server + '?' + $.param($.extend({preview: preview_levels},
+                                                                    params)));
+        preview.responseType = 'blob';
+        preview.onload = function() {
+            if (!done && seq === raster_seq && preview.status === 200) {
+                showRaster(preview);
+                updateT();
+            }
+        };
+        preview.send();
+        xhr.send();
+    }
+
+    /* Draws the route over the map image, on a canvas of the same size and position. */
+    function drawRoute() {
+        if (!img_w) {
+            return;
+        }
+        overlay.width = img_w;
+        overlay.height = img_h;
+        const ctx = overlay.getContext('2d');
+        ctx.clearRect(0, 0, img_w, img_h);
+        if (!route_line || route_line.lon.length < 2) {
+            return;
+        }
+        ctx.strokeStyle = 'rgba(108, 181, 230, ' + (200 / 255) + ')';
+        ctx.lineWidth = 5;
+        ctx.lineCap = 'round';
+        ctx.lineJoin = 'round';
+        ctx.beginPath();
+        for (var i = 0; i < route_line.lon.length; i++) {
+            const x = (route_line.lon[i] - ullon_bound) * (1 / wdpp);
+            const y = (ullat_bound - route_line.lat[i]) * (1 / hdpp);
+            if (i === 0) {
+                ctx.moveTo(x, y);
+            } else {
+                ctx.lineTo(x, y);
+            }
+        }
+        ctx.stroke();
+    }
+
+    function updateOverlay() {
         $.get({
             async: true,
-            url: raster_server,
-            data: params,
+            url: route_overlay,
             success: function(data) {
-                console.log(data);
-                if (data.query_success) {
-                    $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' +
-                                data.b64_encoded_image_data.length);
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    current_level = data.depth;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    wdpp = (lrlon_bound - ullon_bound) / img_w;
-                    hdpp = (ullat_bound - lrlat_bound) / img_h;
-                    // Compute initial transform
-                    tx = - (params.ullon - ullon_bound) * (1 / wdpp);
-                    ty = (params.ullat - ullat_bound) * (1 / hdpp);
-                    rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
-                    rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
-                    updateMarkers();
-                    getInProgress = false;
-                    if (successCallback) {
-                        successCallback();
-                    }
-                } else {
-                    $loadingstatus.hide();
-                }
-            },
-            error: function() {
-                getInProgress = false;
-                $errorStatus.show();
-                setTimeout(function() {
-                    $errorStatus.fadeOut();
-                }, 4000);
+                route_line = data;
+                drawRoute();
             },
             dataType: 'json'
         });
@@ -155,6 +234,7 @@ $(function() {
 
     function updateT() {
         map.style.transform = 'translateX(' + tx + 'px) translateY(' + ty + 'px)';
+        overlay.style.transform = map.style.transform;
         dest.style.transform = 'translateX(' + (tx+rtx) + 'px) translateY(' + (ty+rty) + 'px)';
         for (var i = 0; i < markers.length; i++) {
             const marker = markers[i];
@@ -173,7 +253,7 @@ $(function() {
             data: route_params,
             success: function(data) {
                 data = JSON.parse(data);
-                updateImg();
+                updateOverlay();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
                 } else {
@@ -313,6 +393,7 @@ $(function() {
     /* ══════════════════════════════════ ೋღ SETUP ღೋ ════════════════════════════════ */
 
     map = document.getElementById('map');
+    overlay = document.getElementById('route-overlay');
     dest = document.getElementById('dest');
     dest.style.visibility = 'hidden';
     params.lrlon = real_lrlon();
@@ -320,6 +401,7 @@ $(function() {
     loadCookies();
     setTheme();
     update();
+    updateOverlay();
     /* Hide scroll bar */
     $('body').css('overflow', 'hidden');
 
@@ -410,7 +492,8 @@ $(function() {
             success: function() {
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
-                update();
+                route_line = null;
+                drawRoute();
             },
         });
     });
@@ -0,0 +1,40 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Builds small OSM files for tests and loads them into a GraphDB, e.g.
+ * new OsmFixture().node(1, lon1, lat1).node(2, lon2, lat2).way(10, "residential", 1, 2).build().
+ */
+class OsmFixture {
+    private final StringBuilder xml = new StringBuilder("<osm>\n");
+
+    /** Adds a node. */
+    OsmFixture node(long id, double lon, double lat) {
+        xml.append(String.format(Locale.ROOT, "<node id=\"%d\" lon=\"%.10f\" lat=\"%.10f\"/>%n",
+                id, lon, lat));
+        return this;
+    }
+
+    /** Adds a way through the nodes refs, in order, tagged as the given kind of highway. */
+    OsmFixture way(long id, String highway, long... refs) {
+        xml.append("<way id=\"").append(id).append("\">");
+        for (long ref : refs) {
+            xml.append("<nd ref=\"").append(ref).append("\"/>");
+        }
+        xml.append("<tag k=\"highway\" v=\"").append(highway).append("\"/></way>\n");
+        return this;
+    }
+
+    /** Writes the file into a new temporary directory and returns the graph read from it. */
+    GraphDB build() throws IOException {
+        File osm = new File(Files.createTempDirectory("osm").toFile(), "fixture.osm.xml");
+        try (PrintWriter out = new PrintWriter(osm)) {
+            out.print(xml);
+            out.println("</osm>");
+        }
+        return new GraphDB(osm.getPath());
+    }
+}
@@ -0,0 +1,41 @@
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBulkhead {
+
+    @Test
+    public void testRejectsWhenFullAndNoWaiting() {
+        Bulkhead bulkhead = new Bulkhead("test_bulkhead", 2, 0, 1000);
+        assertTrue(bulkhead.tryEnter());
+        assertTrue(bulkhead.tryEnter());
+        assertFalse(bulkhead.tryEnter());
+        assertEquals(1, Metrics.counter("test_bulkhead.rejected").get());
+        bulkhead.exit();
+        assertTrue(bulkhead.tryEnter());
+    }
+
+    @Test
+    public void testWaitsForAPermitUpToTheTimeout() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test_bulkhead_wait", 1, 1, 50);
+        assertTrue(bulkhead.tryEnter());
+        long start = System.nanoTime();
+        assertFalse(bulkhead.tryEnter());
+        assertTrue(System.nanoTime() - start >= 50_000_000L);
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Bulkhead patient = new Bulkhead("test_bulkhead_patient", 1, 1, 10_000);
+        assertTrue(patient.tryEnter());
+        Future<Boolean> waiter = pool.submit(patient::tryEnter);
+        Thread.sleep(20);
+        patient.exit();
+        assertTrue(waiter.get());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,75 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestComponents {
+    private static GraphDB graph;
+
+    /**
+     * Builds a graph of two components: a road of four points, and a road of two points that
+     * runs under the third point of the first, a kilometer south.
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, -122.2600, 37.870)
+                .node(2, -122.2567, 37.870)
+                .node(3, -122.2533, 37.870)
+                .node(4, -122.2500, 37.870)
+                .node(5, -122.2533, 37.860)
+                .node(6, -122.2520, 37.860)
+                .way(10, "residential", 1, 2, 3, 4)
+                .way(11, "residential", 5, 6)
+                .build();
+    }
+
+    @Test
+    public void testLabelsComponents() {
+        assertEquals(2, graph.componentSize.length);
+        assertEquals(4, graph.componentSize[graph.largestComponent]);
+        assertEquals(graph.largestComponent, graph.component(1L));
+        assertTrue(graph.connected(1L, 4L));
+        assertTrue(graph.connected(5L, 6L));
+        assertFalse(graph.connected(1L, 5L));
+        assertNotEquals(graph.largestComponent, graph.component(6L));
+    }
+
+    @Test
+    public void testCrossComponentPathFailsFast() {
+        /* Clicks are never moved to another component, however small theirs is. */
+        assertEquals(5L, graph.closest(-122.2533, 37.860));
+        assertEquals(6L, graph.closest(-122.2520, 37.861));
+        Router.SearchStats stats = new Router.SearchStats();
+        List<Long> path = Router.shortestPath(graph, -122.2533, 37.860, -122.2600, 37.870,
+                stats);
+        assertNotNull(path);
+        assertTrue(path.isEmpty());
+        assertEquals(0, stats.settledNodes);
+        assertEquals(Arrays.asList(3L, 2L, 1L),
+                Router.shortestPath(graph, -122.2533, 37.869, -122.2600, 37.870));
+    }
+
+    @Test
+    public void testCrossComponentRouteFailsFast() {
+        Router.SearchStats stats = new Router.SearchStats();
+        Router.Route route = Router.route(graph, -122.2530, 37.860, -122.2580, 37.870, stats);
+        assertNotNull(route);
+        assertTrue(route.isEmpty());
+        assertTrue(route.nodes().isEmpty());
+        assertEquals(0, stats.settledNodes);
+        assertEquals(0, stats.heapPushes);
+
+        route = Router.route(graph, -122.2590, 37.870, -122.2510, 37.870,
+                new Router.SearchStats());
+        assertFalse(route.isEmpty());
+        assertEquals(Arrays.asList(2L, 3L), route.nodes());
+    }
+}
@@ -0,0 +1,137 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sanity checks for the degree-2 chain contraction on a small graph with every kind of chain.
+ */
+public class TestContractedGraph {
+    private static GraphDB graph;
+
+    /**
+     * Builds, around a crossing at node 1: a road 1-2-3-4 with two shape points, a dead end
+     * 1-8 with none, and a loop 1-5-6-7-1 back to the crossing. Apart from that lies a ring
+     * 20-21-22-23-20 on which every vertex has degree two.
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, -122.2600, 37.8700)
+                .node(2, -122.2590, 37.8702)
+                .node(3, -122.2580, 37.8699)
+                .node(4, -122.2570, 37.8701)
+                .node(5, -122.2605, 37.8710)
+                .node(6, -122.2600, 37.8718)
+                .node(7, -122.2595, 37.8710)
+                .node(8, -122.2600, 37.8690)
+                .node(20, -122.2500, 37.8600)
+                .node(21, -122.2490, 37.8600)
+                .node(22, -122.2490, 37.8610)
+                .node(23, -122.2500, 37.8610)
+                .way(10, "residential", 1, 2, 3, 4)
+                .way(11, "residential", 1, 8)
+                .way(12, "residential", 1, 5, 6, 7, 1)
+                .way(13, "residential", 20, 21, 22, 23, 20)
+                .build();
+        assertEquals(12, graph.nodeId.length);
+    }
+
+    private static int index(long id) {
+        return graph.vertice.get(id).index;
+    }
+
+    /** Crossings, dead ends and one vertex of the ring are core; chains run between them. */
+    @Test
+    public void testChains() {
+        ContractedGraph cg = graph.contracted;
+        Set<Integer> core = new HashSet<>();
+        for (int c : cg.core) {
+            core.add(c);
+        }
+        assertEquals(4, core.size());
+        assertTrue(core.containsAll(Arrays.asList(index(1), index(4), index(8))));
+        int ring = cg.core[cg.size() - 1];
+        assertEquals(graph.component(20L), graph.component[ring]);
+
+        assertEquals(4, cg.chainFrom.length);
+        int loops = 0;
+        for (int c = 0; c < cg.chainFrom.length; c++) {
+            int interior = cg.geometryStart[c + 1] - cg.geometryStart[c];
+            if (cg.chainFrom[c] == cg.chainTo[c]) {
+                /* The loop at the crossing and the ring each close on their core vertex. */
+                assertEquals(3, interior);
+                assertTrue(cg.chainFrom[c] == index(1) || cg.chainFrom[c] == ring);
+                loops += 1;
+            } else if (cg.chainFrom[c] == index(8) || cg.chainTo[c] == index(8)) {
+                assertEquals(0, interior);
+            } else {
+                assertEquals(2, interior);
+            }
+        }
+        assertEquals(2, loops);
+        /* Each loop is one chain, and gives its core vertex an arc out and an arc back. */
+        int c1 = cg.coreOf[index(1)];
+        assertEquals(4, cg.arcStart[c1 + 1] - cg.arcStart[c1]);
+        assertEquals(2, cg.arcStart[cg.coreOf[ring] + 1] - cg.arcStart[cg.coreOf[ring]]);
+
+        /* Interior vertices know their place on their chain. */
+        int v3 = index(3);
+        int chain = cg.chainOf[v3];
+        assertEquals(v3, cg.geometry[cg.geometryIndex[v3]]);
+        double from1 = graph.distance(1L, 2L) + graph.distance(2L, 3L);
+        double from4 = graph.distance(4L, 3L);
+        assertEquals(from1 + from4, cg.chainLength[chain], 1e-12);
+        assertEquals(cg.chainFrom[chain] == index(1) ? from1 : from4, cg.offset[v3], 1e-12);
+    }
+
+    /** Every vertex is either core or on exactly one chain, and chains hold each once. */
+    @Test
+    public void testEveryVertexKeptOnce() {
+        ContractedGraph cg = graph.contracted;
+        int n = graph.nodeId.length;
+        int[] seen = new int[n];
+        for (int c : cg.core) {
+            seen[c] += 1;
+        }
+        for (int v : cg.geometry) {
+            seen[v] += 1;
+            assertEquals(-1, cg.coreOf[v]);
+        }
+        for (int v = 0; v < n; v++) {
+            assertEquals("Vertex " + graph.nodeId[v] + " is not kept exactly once.", 1, seen[v]);
+        }
+        assertTrue(cg.size() <= n);
+    }
+
+    /** Expanding an arc walks real edges of the full graph and matches the arc weight. */
+    @Test
+    public void testArcGeometry() {
+        ContractedGraph cg = graph.contracted;
+        for (int x = 0; x < cg.size(); x++) {
+            for (int a = cg.arcStart[x]; a < cg.arcStart[x + 1]; a++) {
+                ContractedGraph.IntList path = new ContractedGraph.IntList();
+                path.add(cg.core[x]);
+                cg.expandArc(a, path);
+                assertEquals(cg.core[cg.arcHead[a]], path.last());
+                double miles = 0;
+                for (int i = 1; i < path.size; i++) {
+                    long v = graph.nodeId[path.get(i - 1)];
+                    long w = graph.nodeId[path.get(i)];
+                    boolean adjacent = false;
+                    for (long u : graph.adjacent(v)) {
+                        adjacent |= u == w;
+                    }
+                    assertTrue(adjacent);
+                    miles += graph.distance(v, w);
+                }
+                assertEquals(cg.arcWeight[a], miles, 1e-9);
+            }
+        }
+    }
+}
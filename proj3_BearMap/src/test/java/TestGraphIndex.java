@@ -0,0 +1,140 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that renumbering the vertices along the Hilbert curve keeps every vertex and edge.
+ */
+public class TestGraphIndex {
+    private static final int SIDE = 4;
+    private static final double LON0 = -122.26, LAT0 = 37.86, STEP = 0.001;
+    /** OSM ids of the grid by row and column, shuffled so they say nothing about position. */
+    private static long[][] ids = new long[SIDE][SIDE];
+    /** The way class of each edge, keyed by its two OSM ids. */
+    private static Map<List<Long>, Integer> edges = new HashMap<>();
+    private static GraphDB graph;
+
+    /**
+     * Builds a 4 by 4 grid in which every row is a residential street, column 0 is a primary
+     * road, and the first block of row 0 is also part of a primary road. A node on no way
+     * completes the file.
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        List<Long> shuffled = new ArrayList<>();
+        for (long i = 0; i < SIDE * SIDE; i++) {
+            shuffled.add(100 + 7 * i);
+        }
+        Collections.shuffle(shuffled, new Random(30));
+        OsmFixture osm = new OsmFixture();
+        for (int r = 0; r < SIDE; r++) {
+            for (int c = 0; c < SIDE; c++) {
+                ids[r][c] = shuffled.get(r * SIDE + c);
+                osm.node(ids[r][c], lon(c), lat(r));
+            }
+        }
+        osm.node(99, lon(0), lat(0));
+        for (int r = 0; r < SIDE; r++) {
+            way(osm, 10 + r, "residential", ids[r]);
+        }
+        way(osm, 20, "primary", ids[0][0], ids[1][0], ids[2][0], ids[3][0]);
+        way(osm, 21, "primary", ids[0][0], ids[0][1]);
+        graph = osm.build();
+    }
+
+    private static double lon(int c) {
+        return LON0 + c * STEP;
+    }
+
+    private static double lat(int r) {
+        return LAT0 + r * STEP;
+    }
+
+    /** Adds a way and records its edges, keeping the more important class of each. */
+    private static void way(OsmFixture osm, long id, String highway, long... refs) {
+        osm.way(id, highway, refs);
+        int wayClass = GraphDB.wayClass(highway);
+        for (int i = 1; i < refs.length; i++) {
+            for (List<Long> edge : Arrays.asList(Arrays.asList(refs[i - 1], refs[i]),
+                    Arrays.asList(refs[i], refs[i - 1]))) {
+                edges.merge(edge, wayClass, Math::min);
+            }
+        }
+    }
+
+    @Test
+    public void testVerticesKeepTheirIdAndPosition() {
+        assertEquals(SIDE * SIDE, graph.nodeId.length);
+        assertNull(graph.vertice.get(99L));
+        for (int r = 0; r < SIDE; r++) {
+            for (int c = 0; c < SIDE; c++) {
+                int i = graph.vertice.get(ids[r][c]).index;
+                assertEquals(ids[r][c], graph.nodeId[i]);
+                assertEquals(lon(c), graph.nodeLon[i], 1e-9);
+                assertEquals(lat(r), graph.nodeLat[i], 1e-9);
+                assertEquals(lon(c), graph.lon(ids[r][c]), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testEveryEdgeSurvives() {
+        int n = graph.nodeId.length;
+        assertEquals(0, graph.adjStart[0]);
+        assertEquals(graph.adjList.length, graph.adjStart[n]);
+        assertEquals(graph.adjList.length, graph.adjClass.length);
+        Map<List<Long>, Integer> found = new HashMap<>();
+        for (int v = 0; v < n; v++) {
+            assertTrue(graph.adjStart[v] <= graph.adjStart[v + 1]);
+            for (int e = graph.adjStart[v]; e < graph.adjStart[v + 1]; e++) {
+                List<Long> edge = Arrays.asList(graph.nodeId[v], graph.nodeId[graph.adjList[e]]);
+                assertNull("Edge " + edge + " is listed twice.",
+                        found.put(edge, (int) graph.adjClass[e]));
+            }
+        }
+        assertEquals(edges, found);
+        assertEquals(GraphDB.wayClass("primary"), graph.wayClass(
+                graph.vertice.get(ids[0][1]).index, graph.vertice.get(ids[0][0]).index));
+    }
+
+    @Test
+    public void testNeighboursGetCloseIndices() {
+        /* The curve covers the lower left quadrant of the grid before any other. */
+        Set<Long> first = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            first.add(graph.nodeId[i]);
+        }
+        assertEquals(new HashSet<>(Arrays.asList(ids[0][0], ids[0][1], ids[1][0], ids[1][1])),
+                first);
+    }
+
+    @Test
+    public void testClosestAndRouteReturnOsmIds() {
+        for (int r = 0; r < SIDE; r++) {
+            for (int c = 0; c < SIDE; c++) {
+                assertEquals(ids[r][c], graph.closest(lon(c) + 0.0001, lat(r) - 0.0001));
+            }
+        }
+        /* Only row streets and column 0 connect, so the way around is the only way. */
+        List<Long> expected = Arrays.asList(ids[3][3], ids[3][2], ids[3][1], ids[3][0],
+                ids[2][0], ids[1][0], ids[0][0], ids[0][1], ids[0][2]);
+        assertEquals(expected, Router.shortestPath(graph, lon(3), lat(3), lon(2), lat(0)));
+        /* Starting and ending inside the end edges, the route passes all but the first. */
+        Router.Route route = Router.route(graph, lon(3) - 0.0001, lat(3), lon(2) + 0.0001,
+                lat(0), new Router.SearchStats());
+        assertEquals(expected.subList(1, expected.size()), route.nodes());
+    }
+}
@@ -0,0 +1,32 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestLruCache {
+
+    @Test
+    public void testEvictsLeastRecentlyUsedByWeight() {
+        LruCache<String, String> cache = new LruCache<>("test_lru", 10, String::length);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        assertEquals("aaaa", cache.get("a"));
+        /* b is now the least recently used, so it goes to make room for c. */
+        cache.put("c", "cccc");
+        assertNull(cache.get("b"));
+        assertEquals("aaaa", cache.get("a"));
+        assertEquals("cccc", cache.get("c"));
+        assertEquals(8, cache.weight());
+    }
+
+    @Test
+    public void testLoaderAndOversizedValues() {
+        LruCache<Integer, String> cache = new LruCache<>("test_lru_loader", 3, String::length);
+        assertEquals("xx", cache.get(2, k -> "xx"));
+        assertEquals("xx", cache.get(2, k -> "not called"));
+        /* Heavier than the whole budget: returned, but not cached. */
+        assertEquals("yyyy", cache.get(4, k -> "yyyy"));
+        assertNull(cache.get(4));
+        assertEquals(1, cache.size());
+    }
+}
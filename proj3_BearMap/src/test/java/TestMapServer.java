@@ -0,0 +1,21 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMapServer {
+
+    @Test
+    public void testIfNoneMatch() {
+        String etag = "\"5f3a-1c2\"";
+        assertTrue(MapServer.notModified("\"5f3a-1c2\"", etag));
+        assertTrue(MapServer.notModified("W/\"5f3a-1c2\"", etag));
+        assertTrue(MapServer.notModified("\"aaaa\", W/\"5f3a-1c2\"", etag));
+        assertTrue(MapServer.notModified("\"aaaa\",\"5f3a-1c2\"", etag));
+        assertTrue(MapServer.notModified("*", etag));
+        assertFalse(MapServer.notModified(null, etag));
+        assertFalse(MapServer.notModified("", etag));
+        assertFalse(MapServer.notModified("\"aaaa\", \"bbbb\"", etag));
+        assertFalse(MapServer.notModified("5f3a-1c2", etag));
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestMetrics {
+
+    @Test
+    public void testCountersAreSharedByName() {
+        Metrics.Counter c = Metrics.counter("test.counter");
+        assertSame(c, Metrics.counter("test.counter"));
+        long before = c.get();
+        c.increment();
+        c.add(41);
+        assertEquals(before + 42, Metrics.counter("test.counter").get());
+    }
+
+    /** Returns the upper bound, in milliseconds, of the bucket a single sample falls in. */
+    private static double bucketOf(String name, long nanos) {
+        Metrics.Histogram h = Metrics.histogram(name);
+        h.record(nanos);
+        return h.quantileMillis(1);
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        assertEquals(0, Metrics.histogram("test.empty").quantileMillis(0.5), 0);
+        /* Anything under two microseconds, zero included, is in the first bucket. */
+        assertEquals(0.002, bucketOf("test.zero", 0), 0);
+        assertEquals(0.002, bucketOf("test.one", 1000), 0);
+        assertEquals(0.002, bucketOf("test.under_two", 1999), 0);
+        /* An exact power of two starts the next bucket. */
+        assertEquals(0.004, bucketOf("test.two", 2000), 0);
+        assertEquals(1.024, bucketOf("test.below_1024", 1023 * 1000), 0);
+        assertEquals(2.048, bucketOf("test.at_1024", 1024 * 1000), 0);
+        /* Samples past the last bucket are kept in it. */
+        assertEquals((1L << 40) / 1000.0, bucketOf("test.huge", Long.MAX_VALUE), 0);
+    }
+
+    @Test
+    public void testQuantilesRankSamples() {
+        Metrics.Histogram h = Metrics.histogram("test.quantiles");
+        for (int i = 0; i < 90; i++) {
+            h.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            h.record(100 * 1000);
+        }
+        assertEquals(100, h.count());
+        assertEquals(0.002, h.quantileMillis(0.5), 0);
+        assertEquals(0.002, h.quantileMillis(0.9), 0);
+        assertEquals(0.128, h.quantileMillis(0.99), 0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSnapshot() {
+        Metrics.counter("test.snapshot.counter").add(3);
+        Metrics.gauge("test.snapshot.gauge", () -> 7);
+        Metrics.histogram("test.snapshot.time").record(2 * 1000 * 1000);
+        Metrics.histogram("test.snapshot.time").record(4 * 1000 * 1000);
+        Map<String, Object> all = Metrics.snapshot();
+
+        assertEquals(3L, all.get("test.snapshot.counter"));
+        assertEquals(7, all.get("test.snapshot.gauge"));
+        Map<String, Object> time = (Map<String, Object>) all.get("test.snapshot.time");
+        assertEquals(Arrays.asList("count", "mean_ms", "p50_ms", "p90_ms", "p99_ms"),
+                Arrays.asList(time.keySet().toArray()));
+        assertEquals(2L, time.get("count"));
+        assertEquals(3.0, (double) time.get("mean_ms"), 1e-9);
+        assertEquals(2.048, (double) time.get("p50_ms"), 0);
+        assertEquals(4.096, (double) time.get("p99_ms"), 0);
+
+        /* Names come out sorted, whatever kind of metric they are. */
+        String previous = "";
+        for (String name : all.keySet()) {
+            assertTrue(previous.compareTo(name) < 0);
+            previous = name;
+        }
+    }
+}
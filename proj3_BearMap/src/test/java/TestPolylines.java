@@ -0,0 +1,52 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPolylines {
+
+    @Test
+    public void testDropsPointsWithinTheTolerance() {
+        double[] x = {0, 1, 2, 3, 4, 5, 6};
+        double[] y = {0, 0.1, -0.1, 0.05, 3, 3.1, 3};
+        /* The corner at (4, 3) stays; the wiggles before it and after it do not. */
+        assertArrayEquals(new int[]{0, 3, 4, 6}, Polylines.simplify(x, y, 0.5));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6}, Polylines.simplify(x, y, 0.01));
+    }
+
+    @Test
+    public void testKeepsEndsOfShortAndStraightLines() {
+        assertArrayEquals(new int[]{0, 1}, Polylines.simplify(new double[]{0, 1},
+                new double[]{0, 1}, 1));
+        assertArrayEquals(new int[0], Polylines.simplify(new double[0], new double[0], 1));
+        double[] x = new double[1000], y = new double[1000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = i;
+            y[i] = 2 * i;
+        }
+        assertArrayEquals(new int[]{0, 999}, Polylines.simplify(x, y, 0.1));
+    }
+
+    @Test
+    public void testStaysWithinTheTolerance() {
+        double[] x = new double[500], y = new double[500];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = i;
+            y[i] = 20 * Math.sin(i / 15.0);
+        }
+        int[] kept = Polylines.simplify(x, y, 1);
+        assertTrue(kept.length < 100);
+        assertEquals(0, kept[0]);
+        assertEquals(499, kept[kept.length - 1]);
+        /* Each dropped point lies within the tolerance of the kept line around it. */
+        for (int k = 1; k < kept.length; k++) {
+            int a = kept[k - 1], b = kept[k];
+            double dx = x[b] - x[a], dy = y[b] - y[a];
+            for (int i = a + 1; i < b; i++) {
+                double cross = dx * (y[i] - y[a]) - dy * (x[i] - x[a]);
+                assertTrue(Math.abs(cross) / Math.hypot(dx, dy) <= 1);
+            }
+        }
+    }
+}
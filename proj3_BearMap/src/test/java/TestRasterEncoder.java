@@ -0,0 +1,70 @@
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestRasterEncoder {
+
+    /** Returns an integer RGB image with many distinct colours. */
+    private static BufferedImage gradient(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | 128);
+            }
+        }
+        return img;
+    }
+
+    @Test
+    public void testChoosesTheRequestedFormat() {
+        RasterEncoder.Format png = RasterEncoder.Format.PNG;
+        assertEquals(RasterEncoder.Format.INDEXED, RasterEncoder.choose("indexed", null, png));
+        assertEquals(RasterEncoder.Format.JPEG,
+                RasterEncoder.choose(null, "image/jpeg,*/*", png));
+        assertEquals(png, RasterEncoder.choose(null, "image/png,image/jpeg", png));
+        assertEquals(png, RasterEncoder.choose("gif", "*/*", png));
+        assertEquals(RasterEncoder.Format.PNG_FAST,
+                RasterEncoder.choose(null, null, RasterEncoder.Format.PNG_FAST));
+    }
+
+    @Test
+    public void testQuantizeKeepsAtMost256Colours() {
+        BufferedImage img = gradient(300, 200);
+        BufferedImage indexed = RasterEncoder.quantize(img);
+        assertEquals(BufferedImage.TYPE_BYTE_INDEXED, indexed.getType());
+        Set<Integer> colours = new HashSet<>();
+        for (int y = 0; y < indexed.getHeight(); y++) {
+            for (int x = 0; x < indexed.getWidth(); x++) {
+                int p = indexed.getRGB(x, y), q = img.getRGB(x, y);
+                colours.add(p);
+                /* Every pixel stays close to its original colour. */
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int diff = Math.abs(((p >> shift) & 0xff) - ((q >> shift) & 0xff));
+                    assertTrue(diff < 48);
+                }
+            }
+        }
+        assertTrue(colours.size() <= 256);
+    }
+
+    @Test
+    public void testEveryFormatDecodes() throws Exception {
+        BufferedImage img = gradient(64, 48);
+        RasterEncoder encoder = new RasterEncoder(1, 0.85f);
+        for (RasterEncoder.Format format : RasterEncoder.Format.values()) {
+            byte[] bytes = encoder.encode(img, format);
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes));
+            assertNotNull(format.key, decoded);
+            assertEquals(64, decoded.getWidth());
+            assertEquals(48, decoded.getHeight());
+        }
+    }
+}
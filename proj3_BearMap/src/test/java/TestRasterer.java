@@ -47,6 +47,26 @@ public class TestRasterer {
         }
     }
 
+    @Test
+    public void testTileRangeClampedToRoot() {
+        /* The whole map at one tile of width is the single root tile. */
+        Rasterer.Raster root = rasterer.raster(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT, MapServer.TILE_SIZE);
+        assertEquals(0, root.depth);
+        assertArrayEquals(new String[][]{{"d0_x0_y0.png"}}, root.renderGrid());
+
+        /* A box running off the lower right corner stops at the last row and column. */
+        double lonPerTile = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / 4;
+        double latPerTile = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / 4;
+        Rasterer.Raster corner = rasterer.raster(MapServer.ROOT_LRLON - lonPerTile / 2,
+                MapServer.ROOT_LRLAT + latPerTile / 2, MapServer.ROOT_LRLON + lonPerTile,
+                MapServer.ROOT_LRLAT - latPerTile, 1.5 * MapServer.TILE_SIZE);
+        assertEquals(2, corner.depth);
+        assertArrayEquals(new String[][]{{"d2_x3_y3.png"}}, corner.renderGrid());
+        assertEquals(MapServer.ROOT_LRLON, corner.lrLon, DOUBLE_THRESHOLD);
+        assertEquals(MapServer.ROOT_LRLAT, corner.lrLat, DOUBLE_THRESHOLD);
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
@@ -0,0 +1,144 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRoadTiles {
+    private static final double ULLON = -122.26, ULLAT = 37.87, LRLON = -122.25, LRLAT = 37.86;
+    private static GraphDB graph;
+
+    /**
+     * Builds a graph with a primary road of three points across the middle of the box, and a
+     * residential road of two points down its left quarter.
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, -122.261, 37.865)
+                .node(2, -122.255, 37.865)
+                .node(3, -122.249, 37.865)
+                .node(4, -122.2575, 37.8675)
+                .node(5, -122.2575, 37.8625)
+                .way(10, "primary", 1, 2, 3)
+                .way(11, "residential", 4, 5)
+                .build();
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int n = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            n |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return n;
+            }
+        }
+    }
+
+    private static int readZigzag(ByteBuffer in) {
+        int n = readVarint(in);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    @Test
+    public void testEdgesKeepTheirWayClass() {
+        int primary = GraphDB.wayClass("primary");
+        int residential = GraphDB.wayClass("residential");
+        int v1 = graph.vertice.get(1L).index, v2 = graph.vertice.get(2L).index;
+        int v4 = graph.vertice.get(4L).index, v5 = graph.vertice.get(5L).index;
+        assertEquals(primary, graph.wayClass(v1, v2));
+        assertEquals(residential, graph.wayClass(v5, v4));
+        assertEquals(-1, graph.wayClass(v1, v4));
+        assertEquals(GraphDB.wayClass("unclassified"), GraphDB.wayClass("footway"));
+    }
+
+    @Test
+    public void testEncodesPolylinesByClass() {
+        ByteBuffer in = ByteBuffer.wrap(RoadTiles.encode(graph, ULLON, ULLAT, LRLON, LRLAT));
+        assertEquals(RoadTiles.EXTENT, readVarint(in));
+        List<Integer> classes = new ArrayList<>();
+        List<int[]> lines = new ArrayList<>();
+        int x = 0, y = 0;
+        while (in.hasRemaining()) {
+            classes.add(readVarint(in));
+            int count = readVarint(in);
+            for (int l = 0; l < count; l++) {
+                int[] xy = new int[2 * readVarint(in)];
+                for (int i = 0; i < xy.length; i += 2) {
+                    x += readZigzag(in);
+                    y += readZigzag(in);
+                    xy[i] = x;
+                    xy[i + 1] = y;
+                }
+                lines.add(xy);
+            }
+        }
+        assertEquals(2, classes.size());
+        assertEquals(GraphDB.wayClass("primary"), (int) classes.get(0));
+        assertEquals(GraphDB.wayClass("residential"), (int) classes.get(1));
+        assertEquals(2, lines.size());
+        /* The two edges of the primary road are one polyline, running past the box. */
+        int[] primary = lines.get(0);
+        assertEquals(6, primary.length);
+        if (primary[0] > primary[4]) {
+            primary = new int[]{primary[4], primary[5], primary[2], primary[3], primary[0],
+                primary[1]};
+        }
+        assertArrayEquals(new int[]{-410, 2048, 2048, 2048, 4506, 2048}, primary);
+        int[] residential = lines.get(1);
+        assertEquals(1024, residential[0]);
+        assertEquals(1024, Math.min(residential[1], residential[3]));
+        assertEquals(3072, Math.max(residential[1], residential[3]));
+    }
+
+    @Test
+    public void testEmptyBoxHasOnlyTheExtent() {
+        byte[] tile = RoadTiles.encode(graph, -122.20, 37.90, -122.19, 37.89);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        RoadTiles.writeVarint(expected, RoadTiles.EXTENT);
+        assertArrayEquals(expected.toByteArray(), tile);
+        assertFalse(RoadTiles.zigzag(-1) < 0);
+        assertEquals(3, RoadTiles.zigzag(-2));
+    }
+
+    @Test
+    public void testRejectsBoxesFinerThanTheDeepestTile() {
+        assertTrue(RoadTiles.encodable(ULLON, ULLAT, LRLON, LRLAT));
+        assertFalse(RoadTiles.encodable(LRLON, ULLAT, ULLON, LRLAT));
+        assertFalse(RoadTiles.encodable(-122.255, 37.865, -122.255 + 1e-9, 37.865 - 1e-9));
+
+        /* Around node 2 at the deepest level, both ends of the primary road are far outside
+         * the box but still on either side of it, in order. */
+        int n = 1 << RoadTiles.MAX_DEPTH;
+        int x = (int) ((-122.255 - MapServer.ROOT_ULLON) / (MapServer.ROOT_LRLON
+                - MapServer.ROOT_ULLON) * n);
+        int y = (int) ((MapServer.ROOT_ULLAT - 37.865) / (MapServer.ROOT_ULLAT
+                - MapServer.ROOT_LRLAT) * n);
+        Rasterer.Raster tile = new Rasterer.Raster(RoadTiles.MAX_DEPTH, x, x, y, y, true);
+        assertTrue(RoadTiles.encodable(tile.ulLon, tile.ulLat, tile.lrLon, tile.lrLat));
+        ByteBuffer in = ByteBuffer.wrap(RoadTiles.encode(graph, tile.ulLon, tile.ulLat,
+                tile.lrLon, tile.lrLat));
+        assertEquals(RoadTiles.EXTENT, readVarint(in));
+        assertEquals(GraphDB.wayClass("primary"), readVarint(in));
+        assertEquals(1, readVarint(in));
+        assertEquals(3, readVarint(in));
+        int[] xs = new int[3];
+        for (int i = 0, px = 0; i < xs.length; i++) {
+            px += readZigzag(in);
+            readZigzag(in);
+            xs[i] = px;
+        }
+        int min = Math.min(xs[0], xs[2]), max = Math.max(xs[0], xs[2]);
+        assertTrue(min < -1000 * RoadTiles.EXTENT);
+        assertTrue(max > 1000 * RoadTiles.EXTENT);
+        assertTrue(min < xs[1] && xs[1] < max);
+    }
+}
@@ -0,0 +1,71 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSessionRoutes {
+    private long now = 0;
+
+    private static Router.Route someRoute() {
+        return new Router.Route(null, null, null, null);
+    }
+
+    @Test
+    public void testSessionsAreSeparate() {
+        SessionRoutes routes = new SessionRoutes(10, 1000, () -> now);
+        Router.Route a = someRoute();
+        Router.Route b = someRoute();
+        routes.put("a", a);
+        routes.put("b", b);
+        assertSame(a, routes.get("a"));
+        assertSame(b, routes.get("b"));
+        routes.remove("a");
+        assertSame(Router.Route.EMPTY, routes.get("a"));
+        assertSame(b, routes.get("b"));
+    }
+
+    @Test
+    public void testIdleSessionsExpire() {
+        SessionRoutes routes = new SessionRoutes(10, 1000, () -> now);
+        Router.Route a = someRoute();
+        routes.put("a", a);
+        routes.put("b", someRoute());
+        now = 800;
+        /* Using a session keeps it alive. */
+        assertSame(a, routes.get("a"));
+        now = 1500;
+        assertSame(a, routes.get("a"));
+        assertSame(Router.Route.EMPTY, routes.get("b"));
+        now = 2600;
+        routes.expire();
+        assertEquals(0, routes.size());
+    }
+
+    @Test
+    public void testIdlestSessionMakesRoom() {
+        SessionRoutes routes = new SessionRoutes(2, 1000, () -> now);
+        Router.Route a = someRoute();
+        routes.put("a", a);
+        now = 10;
+        routes.put("b", someRoute());
+        now = 20;
+        routes.get("a");
+        routes.put("c", someRoute());
+        assertEquals(2, routes.size());
+        assertSame(a, routes.get("a"));
+        assertSame(Router.Route.EMPTY, routes.get("b"));
+    }
+
+    @Test
+    public void testSessionIds() {
+        String id = SessionRoutes.newSessionId();
+        assertTrue(SessionRoutes.isSessionId(id));
+        assertNotEquals(id, SessionRoutes.newSessionId());
+        assertFalse(SessionRoutes.isSessionId(null));
+        assertFalse(SessionRoutes.isSessionId("short"));
+        assertFalse(SessionRoutes.isSessionId(id.substring(1) + "!"));
+    }
+}
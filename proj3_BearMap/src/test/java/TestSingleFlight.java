@@ -0,0 +1,64 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestSingleFlight {
+
+    @Test
+    public void testConcurrentCallsShareOneComputation() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>("test_flights");
+        Metrics.Counter coalesced = Metrics.counter("test_flights.coalesced");
+        AtomicInteger computed = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(pool.submit(() -> flights.run("k", k -> {
+                computed.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return k + "!";
+            })));
+        }
+        /* Hold the computation until every other thread is waiting on it. */
+        while (coalesced.get() < threads - 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Future<String> r : results) {
+            assertEquals("k!", r.get());
+        }
+        assertEquals(1, computed.get());
+        pool.shutdown();
+
+        /* Once a computation is over, the next call computes afresh. */
+        assertEquals("k?", flights.run("k", k -> k + "?"));
+    }
+
+    @Test
+    public void testFailureIsRethrown() {
+        SingleFlight<Integer, String> flights = new SingleFlight<>("test_flights_failure");
+        try {
+            flights.run(1, k -> {
+                throw new IllegalStateException("boom");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertEquals("ok", flights.run(1, k -> "ok"));
+    }
+}
@@ -0,0 +1,221 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks snapping and Router.route on a synthetic street grid against a plain Dijkstra over
+ * the dense arrays of the full graph.
+ */
+public class TestSnapRouting {
+    private static final int ROWS = 8, COLS = 8;
+    private static final double LON0 = -122.27, LAT0 = 37.86, STEP = 0.002;
+    private static GraphDB graph;
+
+    /**
+     * Builds a jittered grid in which every row is a street but only columns 0, 3 and 7 are,
+     * so the rows are mostly chains of degree-2 vertices between the crossings.
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        OsmFixture osm = new OsmFixture();
+        Random random = new Random(61);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                osm.node(id(r, c), LON0 + (c + 0.3 * random.nextDouble()) * STEP,
+                        LAT0 + (r + 0.3 * random.nextDouble()) * STEP);
+            }
+        }
+        for (int r = 0; r < ROWS; r++) {
+            long[] row = new long[COLS];
+            for (int c = 0; c < COLS; c++) {
+                row[c] = id(r, c);
+            }
+            osm.way(1000 + r, "residential", row);
+        }
+        for (int c : new int[]{0, 3, 7}) {
+            long[] column = new long[ROWS];
+            for (int r = 0; r < ROWS; r++) {
+                column[r] = id(r, c);
+            }
+            osm.way(2000 + c, "residential", column);
+        }
+        graph = osm.build();
+    }
+
+    private static long id(int r, int c) {
+        return 1 + r * COLS + c;
+    }
+
+    /** Returns the miles of the shortest path from source to every dense vertex. */
+    private static double[] dijkstra(int source) {
+        double[] dist = new double[graph.nodeId.length];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[]{0, source});
+        while (!queue.isEmpty()) {
+            double[] top = queue.poll();
+            int v = (int) top[1];
+            if (top[0] > dist[v]) {
+                continue;
+            }
+            for (int e = graph.adjStart[v]; e < graph.adjStart[v + 1]; e++) {
+                int w = graph.adjList[e];
+                double d = dist[v] + GraphDB.distance(graph.nodeLon[v], graph.nodeLat[v],
+                        graph.nodeLon[w], graph.nodeLat[w]);
+                if (d < dist[w]) {
+                    dist[w] = d;
+                    queue.add(new double[]{d, w});
+                }
+            }
+        }
+        return dist;
+    }
+
+    /** Returns the miles of the shortest path between two snapped points. */
+    private static double expected(GraphDB.EdgeSnap start, GraphDB.EdgeSnap end) {
+        double best = Double.POSITIVE_INFINITY;
+        if (start.sameEdge(end)) {
+            best = GraphDB.distance(start.lon, start.lat, end.lon, end.lat);
+        }
+        int[] sources = {start.from, start.to};
+        double[] sourceDist = {start.toFrom, start.toTo};
+        int[] targets = {end.from, end.to};
+        double[] targetDist = {end.toFrom, end.toTo};
+        for (int i = 0; i < 2; i++) {
+            double[] dist = dijkstra(sources[i]);
+            for (int j = 0; j < 2; j++) {
+                best = Math.min(best, sourceDist[i] + dist[targets[j]] + targetDist[j]);
+            }
+        }
+        return best;
+    }
+
+    /** Returns the length of a route in miles, checking that it walks real edges. */
+    private static double length(Router.Route route) {
+        for (int i = 1; i < route.nodes.size(); i++) {
+            int v = graph.vertice.get(route.nodes.get(i - 1)).index;
+            int w = graph.vertice.get(route.nodes.get(i)).index;
+            assertTrue(graph.wayClass(v, w) >= 0);
+        }
+        double miles = 0;
+        for (int i = 1; i < route.lon.length; i++) {
+            miles += GraphDB.distance(route.lon[i - 1], route.lat[i - 1], route.lon[i],
+                    route.lat[i]);
+        }
+        return miles;
+    }
+
+    /** Routes between two points and checks the route against Dijkstra. */
+    private static Router.Route check(double slon, double slat, double elon, double elat) {
+        Router.Route route = Router.route(graph, slon, slat, elon, elat,
+                new Router.SearchStats());
+        assertFalse(route.isEmpty());
+        double expected = expected(graph.snap(slon, slat), graph.snap(elon, elat));
+        assertEquals(expected, length(route), 1e-9 + 1e-6 * expected);
+        return route;
+    }
+
+    private static double[] point(Random random) {
+        return new double[]{LON0 + (random.nextDouble() * (COLS + 1) - 1) * STEP,
+            LAT0 + (random.nextDouble() * (ROWS + 1) - 1) * STEP};
+    }
+
+    @Test
+    public void testRandomRoutesMatchDijkstra() {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            double[] s = point(random), e = point(random);
+            check(s[0], s[1], e[0], e[1]);
+        }
+    }
+
+    @Test
+    public void testBothEndsOnTheSameEdge() {
+        int v = graph.vertice.get(id(2, 4)).index, w = graph.vertice.get(id(2, 5)).index;
+        double lon = graph.nodeLon[v], lat = graph.nodeLat[v];
+        double dlon = graph.nodeLon[w] - lon, dlat = graph.nodeLat[w] - lat;
+        /* A little off the road on either side, at a fifth and four fifths of the way. */
+        double slon = lon + 0.2 * dlon, slat = lat + 0.2 * dlat + 0.00005;
+        double elon = lon + 0.8 * dlon, elat = lat + 0.8 * dlat - 0.00005;
+        GraphDB.EdgeSnap start = graph.snap(slon, slat), end = graph.snap(elon, elat);
+        assertTrue(start.sameEdge(end));
+        Router.Route route = check(slon, slat, elon, elat);
+        assertTrue(route.nodes.isEmpty());
+        assertEquals(2, route.lon.length);
+        double edge = GraphDB.distance(lon, lat, graph.nodeLon[w], graph.nodeLat[w]);
+        assertEquals(Math.abs(start.toFrom - end.toFrom), length(route), 1e-6 * edge);
+        assertTrue(length(route) > 0.5 * edge);
+    }
+
+    @Test
+    public void testEndsInsideChains() {
+        /* Row 5 between columns 3 and 7 is one chain; (5, 5) is inside it. */
+        int v = graph.vertice.get(id(5, 5)).index, w = graph.vertice.get(id(5, 6)).index;
+        assertEquals(-1, graph.contracted.coreOf[v]);
+        assertEquals(-1, graph.contracted.coreOf[w]);
+        double slon = (graph.nodeLon[v] + graph.nodeLon[w]) / 2;
+        double slat = (graph.nodeLat[v] + graph.nodeLat[w]) / 2;
+        GraphDB.EdgeSnap snap = graph.snap(slon, slat);
+        assertTrue(snap.from == v && snap.to == w || snap.from == w && snap.to == v);
+        int u = graph.vertice.get(id(1, 1)).index;
+        assertEquals(-1, graph.contracted.coreOf[u]);
+        check(slon, slat, graph.nodeLon[u] + 0.0003, graph.nodeLat[u]);
+        check(graph.nodeLon[u] + 0.0003, graph.nodeLat[u], slon, slat);
+        /* Both ends inside the same chain, on different edges of it. */
+        int x = graph.vertice.get(id(5, 4)).index;
+        check(slon, slat, (graph.nodeLon[x] + graph.nodeLon[v]) / 2,
+                (graph.nodeLat[x] + graph.nodeLat[v]) / 2);
+    }
+
+    @Test
+    public void testEndsOnVertices() {
+        int v = graph.vertice.get(id(0, 0)).index, w = graph.vertice.get(id(6, 5)).index;
+        GraphDB.EdgeSnap snap = graph.snap(graph.nodeLon[w], graph.nodeLat[w]);
+        assertEquals(graph.nodeLon[w], snap.lon, 1e-12);
+        assertEquals(graph.nodeLat[w], snap.lat, 1e-12);
+        assertTrue(snap.t == 0 && snap.from == w || snap.t == 1 && snap.to == w);
+        Router.Route route = check(graph.nodeLon[v], graph.nodeLat[v], graph.nodeLon[w],
+                graph.nodeLat[w]);
+        assertEquals(graph.nodeLon[w], route.lon[route.lon.length - 1], 1e-12);
+        assertEquals(graph.nodeLat[w], route.lat[route.lat.length - 1], 1e-12);
+        double[] dist = dijkstra(v);
+        assertEquals(dist[w], length(route), 1e-6 * dist[w]);
+    }
+
+    @Test
+    public void testNearestMatchesALinearScan() {
+        SegmentRTree segments = graph.segments;
+        double meanLat = 0;
+        for (double lat : graph.nodeLat) {
+            meanLat += lat;
+        }
+        double scale = Math.cos(Math.toRadians(meanLat / graph.nodeLat.length));
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            double[] p = point(random);
+            double best = Double.POSITIVE_INFINITY;
+            for (int s = 0; s < segments.size(); s++) {
+                best = Math.min(best, distance(segments, scale, s, p));
+            }
+            assertEquals(best, distance(segments, scale, segments.nearest(p[0], p[1]), p),
+                    1e-12);
+        }
+    }
+
+    /** Returns the projected distance from a point to a segment, as SegmentRTree measures it. */
+    private static double distance(SegmentRTree segments, double scale, int s, double[] p) {
+        double t = segments.fraction(s, p[0], p[1]);
+        int a = segments.segFrom[s], b = segments.segTo[s];
+        double lon = graph.nodeLon[a] + t * (graph.nodeLon[b] - graph.nodeLon[a]);
+        double lat = graph.nodeLat[a] + t * (graph.nodeLat[b] - graph.nodeLat[a]);
+        return Math.hypot((lon - p[0]) * scale, lat - p[1]);
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestTileArchive {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPackAndRead() throws Exception {
+        File dir = folder.newFolder("tiles");
+        byte[] root = {1, 2, 3};
+        byte[] deep = {4, 5, 6, 7, 8};
+        Files.write(new File(dir, "d0_x0_y0.png").toPath(), root);
+        Files.write(new File(dir, "d2_x3_y1.png").toPath(), deep);
+        Path archive = folder.getRoot().toPath().resolve("tiles.bin");
+        assertEquals(2, TileArchive.pack(dir, 2, archive));
+
+        TileArchive tiles = TileArchive.open(archive);
+        assertEquals(2, tiles.maxDepth());
+        assertArrayEquals(root, bytes(tiles.get(0, 0, 0)));
+        assertArrayEquals(deep, bytes(tiles.get("d2_x3_y1.png")));
+        assertNull(tiles.get(2, 1, 3));
+        assertNull(tiles.get(3, 0, 0));
+        assertNull(tiles.get(1, 2, 0));
+        assertNull(tiles.get("not_a_tile.png"));
+    }
+
+    @Test
+    public void testSlots() throws Exception {
+        Path archive = folder.getRoot().toPath().resolve("empty.bin");
+        TileArchive.pack(folder.newFolder("empty"), 3, archive);
+        TileArchive tiles = TileArchive.open(archive);
+        assertEquals(0, tiles.slot(0, 0, 0));
+        assertEquals(1, tiles.slot(1, 0, 0));
+        assertEquals(4, tiles.slot(1, 1, 1));
+        assertEquals(5, tiles.slot(2, 0, 0));
+        assertEquals(5 + 16 + 63, tiles.slot(3, 7, 7));
+        assertEquals(-1, tiles.slot(3, 8, 0));
+    }
+
+    @Test
+    public void testRefusesSlotsOutsideTheFile() throws Exception {
+        File dir = folder.newFolder("one");
+        Files.write(new File(dir, "d1_x1_y0.png").toPath(), new byte[]{1, 2, 3, 4});
+        Path archive = folder.getRoot().toPath().resolve("one.bin");
+        TileArchive.pack(dir, 1, archive);
+        long slot = 12 + 2 * 16;
+        /* A length past the end of the file, a negative length, and an offset into the index. */
+        long[][] corruptions = {{slot + 8, 5}, {slot + 8, -1}, {slot, 12}};
+        for (long[] corruption : corruptions) {
+            Path copy = folder.getRoot().toPath().resolve("corrupt.bin");
+            Files.copy(archive, copy, StandardCopyOption.REPLACE_EXISTING);
+            try (RandomAccessFile file = new RandomAccessFile(copy.toFile(), "rw")) {
+                file.seek(corruption[0]);
+                if (corruption[0] == slot) {
+                    file.writeLong(corruption[1]);
+                } else {
+                    file.writeInt((int) corruption[1]);
+                }
+            }
+            try {
+                TileArchive.open(copy);
+                fail("Opened an archive with slot " + Arrays.toString(corruption));
+            } catch (IOException e) {
+                assertEquals(0, e.getMessage().indexOf("Corrupt tile archive"));
+            }
+        }
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, bytes(TileArchive.open(archive).get(1, 1, 0)));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] b = new byte[buffer.remaining()];
+        buffer.get(b);
+        return b;
+    }
+}
@@ -0,0 +1,69 @@
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestTilePrefetcher {
+
+    @Test
+    public void testPredictsTilesAheadOfThePan() {
+        Rasterer.Raster before = new Rasterer.Raster(3, 2, 4, 3, 4, true);
+        Rasterer.Raster after = new Rasterer.Raster(3, 3, 5, 3, 4, true);
+        List<String> tiles = TilePrefetcher.predict(before, after, 100, Rasterer.MAX_DEPTH);
+        /* Panned right: the column right of the view comes first. */
+        assertEquals("d3_x6_y3.png", tiles.get(0));
+        assertEquals("d3_x6_y4.png", tiles.get(1));
+        /* Then the same area one depth up and the middle of it one depth down. */
+        assertTrue(tiles.contains("d2_x1_y1.png"));
+        assertTrue(tiles.contains("d4_x8_y7.png"));
+        assertFalse(tiles.contains("d3_x2_y3.png"));
+        assertEquals(3, TilePrefetcher.predict(before, after, 3, Rasterer.MAX_DEPTH).size());
+    }
+
+    @Test
+    public void testPredictionsStayInsideThePyramid() {
+        Rasterer.Raster before = new Rasterer.Raster(1, 0, 1, 0, 1, true);
+        for (String tile : TilePrefetcher.predict(before, before, 100,
+                Rasterer.MAX_DEPTH)) {
+            int[] dxy = TileArchive.parseName(tile);
+            int n = 1 << dxy[0];
+            assertTrue(tile, dxy[1] >= 0 && dxy[1] < n && dxy[2] >= 0 && dxy[2] < n);
+        }
+    }
+
+    @Test
+    public void testPredictsDeeperTilesUpToTheMaxDepth() {
+        Rasterer.Raster view = new Rasterer.Raster(7, 40, 43, 50, 52, true);
+        /* At the depth of the pyramid, the tiles one depth down are drawn on demand. */
+        assertTrue(TilePrefetcher.predict(null, view, 100, 10).stream()
+                .anyMatch(tile -> tile.startsWith("d8_")));
+        assertFalse(TilePrefetcher.predict(null, view, 100, 7).stream()
+                .anyMatch(tile -> tile.startsWith("d8_")));
+        Rasterer.Raster deep = new Rasterer.Raster(9, 300, 303, 200, 202, true);
+        assertTrue(TilePrefetcher.predict(null, deep, 100, 10).stream()
+                .anyMatch(tile -> tile.startsWith("d10_")));
+        assertFalse(TilePrefetcher.predict(null, deep, 100, 9).stream()
+                .anyMatch(tile -> tile.startsWith("d10_")));
+    }
+
+    @Test
+    public void testLoadsPredictedTilesInTheBackground() throws Exception {
+        Set<String> loaded = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(2);
+        TilePrefetcher prefetcher = new TilePrefetcher(10, 100, 2, Rasterer.MAX_DEPTH,
+                loaded::contains, tile -> {
+                    loaded.add(tile);
+                    done.countDown();
+                }, () -> false);
+        prefetcher.viewed("s", new Rasterer.Raster(2, 1, 2, 1, 2, true));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, loaded.size());
+    }
+}
@@ -0,0 +1,72 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTileRenderer {
+    private static final int DEPTH = 9, X = 300, Y = 200;
+    private static GraphDB graph;
+    private static File dir;
+
+    /** Returns the longitude and latitude of a point in tile (DEPTH, X, Y), in pixels. */
+    private static double[] at(double px, double py) {
+        int n = 1 << DEPTH;
+        double blockX = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / n;
+        double blockY = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / n;
+        return new double[]{MapServer.ROOT_ULLON + (X + px / 256) * blockX,
+            MapServer.ROOT_ULLAT - (Y + py / 256) * blockY};
+    }
+
+    /** Builds a graph with one road straight across the tile, at a height of 128 pixels. */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        dir = Files.createTempDirectory("rendered").toFile();
+        double[] west = at(-100, 128), middle = at(128, 128), east = at(356, 128);
+        graph = new OsmFixture()
+                .node(1, west[0], west[1])
+                .node(2, middle[0], middle[1])
+                .node(3, east[0], east[1])
+                .way(10, "residential", 1, 2, 3)
+                .build();
+    }
+
+    @Test
+    public void testSearchFindsSegmentsInABox() {
+        List<Integer> found = new ArrayList<>();
+        double[] ul = at(0, 100), lr = at(50, 150);
+        graph.segments.search(ul[0], lr[1], lr[0], ul[1], found::add);
+        assertEquals(1, found.size());
+        found.clear();
+        ul = at(0, 0);
+        lr = at(50, 50);
+        graph.segments.search(ul[0], lr[1], lr[0], ul[1], found::add);
+        assertEquals(0, found.size());
+    }
+
+    @Test
+    public void testDrawsRoadsAndKeepsTheTile() {
+        TileRenderer renderer = new TileRenderer(graph, new File(dir, "tiles"));
+        BufferedImage tile = renderer.tile(DEPTH, X, Y);
+        assertEquals(256, tile.getWidth());
+        int road = tile.getRGB(128, 128) & 0xffffff;
+        int land = tile.getRGB(128, 10) & 0xffffff;
+        assertEquals(0xffffff, road);
+        assertNotEquals(road, land);
+
+        File file = new File(dir, "tiles/" + Rasterer.Raster.tileName(DEPTH, X, Y));
+        assertTrue(file.isFile());
+        long rendered = Metrics.counter("renderer.rendered").get();
+        BufferedImage again = renderer.tile(DEPTH, X, Y);
+        assertEquals(rendered, Metrics.counter("renderer.rendered").get());
+        assertEquals(road, again.getRGB(128, 128) & 0xffffff);
+        assertEquals(file, renderer.file(DEPTH, X, Y));
+    }
+}
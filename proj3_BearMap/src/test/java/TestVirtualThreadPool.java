@@ -0,0 +1,58 @@
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestVirtualThreadPool {
+
+    @Test
+    public void testStopReleasesTheExecutorAndJoin() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        VirtualThreadPool pool = new VirtualThreadPool(executor);
+        pool.start();
+        CountDownLatch running = new CountDownLatch(1), release = new CountDownLatch(1);
+        pool.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getBusyThreads());
+
+        Thread joiner = new Thread(() -> {
+            try {
+                pool.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        joiner.start();
+        pool.stop();
+        assertTrue(pool.isStopped());
+        assertTrue(executor.isShutdown());
+        /* The running task still holds up join until it finishes. */
+        joiner.join(100);
+        assertTrue(joiner.isAlive());
+        release.countDown();
+        joiner.join(5000);
+        assertFalse(joiner.isAlive());
+        assertEquals(0, pool.getBusyThreads());
+        try {
+            pool.execute(() -> { });
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals(0, pool.getBusyThreads());
+        }
+    }
+}